@@ -0,0 +1,351 @@
+//=====================================================================
+//
+// asclib.core.CoreCache - Bounded LRU / LFU Cache
+//
+// NOTE:
+// All operations are O(1). LRU keeps one CoreList ordered by access,
+// LFU keeps a CoreList of frequency buckets, each bucket is a CoreList
+// of entries in LRU order, so ties are evicted least recently used.
+//
+//=====================================================================
+package asclib.core;
+
+import java.util.HashMap;
+
+import asclib.core.CoreList;
+
+
+/**
+ * Bounded cache with count / weight limits and eviction callback
+ *
+ */
+public class CoreCache<K, V> {
+
+	public static final int LRU = 0;
+	public static final int LFU = 1;
+
+	/** causes passed to Listener.OnRemove */
+	public static final int EVICTED = 0;    // over count or weight
+	public static final int EXPIRED = 1;    // ttl reached
+	public static final int REMOVED = 2;    // remove() called
+	public static final int REPLACED = 3;   // put() on the same key
+
+	public static abstract class Weigher<K, V> {
+		public abstract long OnWeigh(K key, V value);
+	}
+
+	public static abstract class Listener<K, V> {
+		public abstract void OnRemove(K key, V value, int cause);
+	}
+
+	private static class Entry<K, V> extends CoreList.Node<Entry<K, V>> {
+		K key;
+		V value;
+		long weight;
+		long expire;              // 0 for never
+		Bucket<K, V> bucket;
+	}
+
+	private static class Bucket<K, V> extends CoreList.Node<Bucket<K, V>> {
+		long freq;
+		CoreList<Entry<K, V>> entries = new CoreList<Entry<K, V>>();
+	}
+
+	private final int policy;
+	private HashMap<K, Entry<K, V>> map = new HashMap<K, Entry<K, V>>();
+	private CoreList<Entry<K, V>> lru = new CoreList<Entry<K, V>>();
+	private CoreList<Bucket<K, V>> buckets = new CoreList<Bucket<K, V>>();
+	private Weigher<K, V> weigher = null;
+	private Listener<K, V> listener = null;
+	private int maxCount = 0;
+	private long maxWeight = 0;
+	private long weight = 0;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	/**
+	 * CoreCache Constructor
+	 * @param policy LRU or LFU
+	 * @param count max entries, <= 0 for unlimited
+	 * @param weight max total weight, <= 0 for unlimited
+	 */
+	public CoreCache(int policy, int count, long weight) {
+		this.policy = policy;
+		this.maxCount = count;
+		this.maxWeight = weight;
+	}
+
+	public CoreCache(int count) {
+		this(LRU, count, 0);
+	}
+
+	/**
+	 * weight of an entry, 1 for each when not set
+	 */
+	public void setWeigher(Weigher<K, V> weigher) {
+		this.weigher = weigher;
+	}
+
+	/**
+	 * invoked when an entry leaves the cache (except clear())
+	 */
+	public void setListener(Listener<K, V> listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * change bounds, evict immediately if needed
+	 */
+	public void limit(int count, long weight) {
+		this.maxCount = count;
+		this.maxWeight = weight;
+		evict();
+	}
+
+	private void touch(Entry<K, V> entry) {
+		if (policy == LRU) {
+			lru.moveHead(entry);
+			return;
+		}
+		Bucket<K, V> bucket = entry.bucket;
+		long freq = bucket.freq + 1;
+		Bucket<K, V> next = (Bucket<K, V>)bucket.getNext();
+		if (next == null || next.freq != freq) {
+			next = new Bucket<K, V>();
+			next.freq = freq;
+			buckets.addAfter(bucket, next);
+		}
+		next.entries.addHead(entry);
+		entry.bucket = next;
+		if (bucket.entries.empty()) {
+			buckets.remove(bucket);
+		}
+	}
+
+	private void link(Entry<K, V> entry) {
+		if (policy == LRU) {
+			lru.addHead(entry);
+			return;
+		}
+		Bucket<K, V> first = (Bucket<K, V>)buckets.first();
+		if (first == null || first.freq != 1) {
+			first = new Bucket<K, V>();
+			first.freq = 1;
+			buckets.addHead(first);
+		}
+		first.entries.addHead(entry);
+		entry.bucket = first;
+	}
+
+	private void unlink(Entry<K, V> entry) {
+		if (policy == LRU) {
+			lru.remove(entry);
+			return;
+		}
+		Bucket<K, V> bucket = entry.bucket;
+		bucket.entries.remove(entry);
+		entry.bucket = null;
+		if (bucket.entries.empty()) {
+			buckets.remove(bucket);
+		}
+	}
+
+	private Entry<K, V> victim() {
+		if (policy == LRU) {
+			return (Entry<K, V>)lru.last();
+		}
+		Bucket<K, V> first = (Bucket<K, V>)buckets.first();
+		return (first == null)? null : (Entry<K, V>)first.entries.last();
+	}
+
+	private void drop(Entry<K, V> entry, int cause) {
+		unlink(entry);
+		map.remove(entry.key);
+		weight -= entry.weight;
+		if (listener != null) {
+			listener.OnRemove(entry.key, entry.value, cause);
+		}
+	}
+
+	private void evict() {
+		evict(0, 0);
+	}
+
+	// evict until [count] more entries of [extra] weight would fit
+	private void evict(int count, long extra) {
+		while (map.size() > 0) {
+			boolean over = (maxCount > 0 && map.size() + count > maxCount);
+			over = over || (maxWeight > 0 && weight + extra > maxWeight);
+			if (!over) break;
+			Entry<K, V> entry = victim();
+			drop(entry, (entry.expire != 0 && expired(entry))? EXPIRED : EVICTED);
+			evictions++;
+		}
+	}
+
+	private static boolean expired(Entry<?, ?> entry) {
+		return entry.expire != 0 && entry.expire - System.currentTimeMillis() <= 0;
+	}
+
+	/**
+	 * look up and mark as used
+	 * @return value, null if missing or expired
+	 */
+	public V get(K key) {
+		Entry<K, V> entry = map.get(key);
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		if (entry.expire != 0 && expired(entry)) {
+			drop(entry, EXPIRED);
+			misses++;
+			return null;
+		}
+		hits++;
+		touch(entry);
+		return entry.value;
+	}
+
+	/**
+	 * look up without changing the order (or the counters)
+	 */
+	public V peek(K key) {
+		Entry<K, V> entry = map.get(key);
+		if (entry == null || expired(entry)) return null;
+		return entry.value;
+	}
+
+	public boolean containsKey(K key) {
+		return peek(key) != null;
+	}
+
+	/**
+	 * insert or replace
+	 * @param ttl millisec to live, <= 0 for never expire
+	 * @return previous value
+	 */
+	public V put(K key, V value, long ttl) {
+		Entry<K, V> old = map.get(key);
+		V previous = null;
+		if (old != null) {
+			previous = old.value;
+			drop(old, REPLACED);
+		}
+		Entry<K, V> entry = new Entry<K, V>();
+		entry.key = key;
+		entry.value = value;
+		entry.weight = (weigher == null)? 1 : weigher.OnWeigh(key, value);
+		entry.expire = (ttl > 0)? System.currentTimeMillis() + ttl : 0;
+		// make room first, or LFU would evict the new entry itself
+		evict(1, entry.weight);
+		map.put(key, entry);
+		weight += entry.weight;
+		link(entry);
+		evict();
+		return previous;
+	}
+
+	public V put(K key, V value) {
+		return put(key, value, 0);
+	}
+
+	/**
+	 * remove a key
+	 * @return value removed, null for none
+	 */
+	public V remove(K key) {
+		Entry<K, V> entry = map.get(key);
+		if (entry == null) return null;
+		drop(entry, REMOVED);
+		return entry.value;
+	}
+
+	/**
+	 * drop everything, the listener is not invoked
+	 */
+	public void clear() {
+		map.clear();
+		lru.clear();
+		while (buckets.size() > 0) {
+			Bucket<K, V> bucket = (Bucket<K, V>)buckets.popHead();
+			bucket.entries.clear();
+		}
+		weight = 0;
+	}
+
+	public int size() {
+		return map.size();
+	}
+
+	public long weight() {
+		return weight;
+	}
+
+	public long hits() {
+		return hits;
+	}
+
+	public long misses() {
+		return misses;
+	}
+
+	public long evictions() {
+		return evictions;
+	}
+
+	/**
+	 * testing case
+	 * @param argv
+	 */
+	public static void main(String[] argv) {
+		final StringBuilder removed = new StringBuilder();
+		Listener<String, Integer> listener = new Listener<String, Integer>() {
+			@Override
+			public void OnRemove(String key, Integer value, int cause) {
+				removed.append(key).append(':').append(cause).append(' ');
+			}
+		};
+		CoreCache<String, Integer> lru = new CoreCache<String, Integer>(LRU, 3, 0);
+		lru.setListener(listener);
+		lru.put("a", 1);
+		lru.put("b", 2);
+		lru.put("c", 3);
+		lru.get("a");
+		lru.put("d", 4);            // evicts b
+		lru.put("a", 10);           // replaces a
+		System.out.println("LRU evicted: " + removed + " a=" + lru.get("a") + " b=" + lru.get("b"));
+		removed.setLength(0);
+		CoreCache<String, Integer> lfu = new CoreCache<String, Integer>(LFU, 3, 0);
+		lfu.setListener(listener);
+		lfu.put("a", 1);
+		lfu.put("b", 2);
+		lfu.put("c", 3);
+		lfu.get("a"); lfu.get("a"); lfu.get("b"); lfu.get("c"); lfu.get("c");
+		lfu.put("d", 4);            // evicts b (freq 2, c also 3)
+		lfu.put("e", 5);            // evicts d (freq 1)
+		System.out.println("LFU evicted: " + removed + " size=" + lfu.size());
+		CoreCache<Integer, byte[]> heavy = new CoreCache<Integer, byte[]>(LRU, 0, 1000);
+		heavy.setWeigher(new Weigher<Integer, byte[]>() {
+			@Override
+			public long OnWeigh(Integer key, byte[] value) {
+				return value.length;
+			}
+		});
+		for (int i = 0; i < 100; i++) heavy.put(i, new byte[i * 3]);
+		System.out.println("weight=" + heavy.weight() + " size=" + heavy.size() + " evictions=" + heavy.evictions());
+		int N = 1000000;
+		CoreCache<Integer, Integer> bench = new CoreCache<Integer, Integer>(LFU, N / 10, 0);
+		long seed = 1;
+		long ts = System.nanoTime();
+		for (int i = 0; i < N * 5; i++) {
+			seed = seed * 6364136223846793005L + 1442695040888963407L;
+			int k = (int)(((seed >>> 33) % N) * ((seed >>> 20) & 7) / 7);
+			if (bench.get(k) == null) bench.put(k, k);
+		}
+		System.out.printf("LFU %d ops: %dms hit rate %.2f\n", N * 5, (System.nanoTime() - ts) / 1000000,
+				bench.hits() * 1.0 / (bench.hits() + bench.misses()));
+	}
+}
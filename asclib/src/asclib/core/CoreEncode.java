@@ -114,7 +114,7 @@ public class CoreEncode {
 		int x3 = ((int)buf[pos + 2]) & 0xff;
 		int x4 = ((int)buf[pos + 3]) & 0xff;
 		int x5 = (x1) | (x2 << 8) | (x3 << 16) | (x4 << 24);
-		return ((long)x5) & 0xffffffff;
+		return ((long)x5) & 0xffffffffL;
 	}
 	
 	public static void encode32u_msb(byte[] buf, int pos, long x) {
@@ -130,7 +130,7 @@ public class CoreEncode {
 		int x3 = ((int)buf[pos + 1]) & 0xff;
 		int x4 = ((int)buf[pos + 0]) & 0xff;
 		int x5 = (x1) | (x2 << 8) | (x3 << 16) | (x4 << 24);
-		return ((long)x5) & 0xffffffff;
+		return ((long)x5) & 0xffffffffL;
 	}
 	
 	public static void encode64i_lsb(byte[] buf, int pos, long x) {
@@ -162,8 +162,8 @@ public class CoreEncode {
 	}
 	
 	public static long decode64i_msb(byte[] buf, int pos) {
-		long x2 = decode32u_lsb(buf, pos);
-		long x1 = decode32u_lsb(buf, pos + 4);
+		long x2 = decode32u_msb(buf, pos);
+		long x1 = decode32u_msb(buf, pos + 4);
 		return (x1) | (x2 << 32);
 	}
 	
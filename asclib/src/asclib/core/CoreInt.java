@@ -73,8 +73,10 @@ public class CoreInt {
 	
 	protected static class TimeVector {
 		private CoreHead[] vector = null;
+		private long[] bitmap = null;    // occupancy, cleared lazily
 		public TimeVector(int size) {
 			vector = new CoreHead[size];
+			bitmap = new long[(size + 63) >> 6];
 			for (int i = 0; i < size; i++) {
 				vector[i] = new CoreHead();
 				vector[i].init();
@@ -94,6 +96,9 @@ public class CoreInt {
 						iter = null;
 					}
 				}
+				for (int i = 0; i < bitmap.length; i++) {
+					bitmap[i] = 0;
+				}
 			}
 		}
 		
@@ -174,37 +179,39 @@ public class CoreInt {
 	protected boolean internalAddTimer(TimeNode node) {
 		long expires = node.expires & 0xffffffff;
 		long idx = expires - timer_jiffies;
-		CoreHead head = null;
+		TimeVector tv = null;
+		int i = 0;
 		if (idx >= 0) {
 			if (idx < LIMIT_1) {
-				int i = (int)(expires & TVR_MASK);
-				head = tv1.vector[i];
+				i = (int)(expires & TVR_MASK);
+				tv = tv1;
 			}
 			else if (idx < LIMIT_2) {
-				int i = (int)((expires >>> SHIFT_1) & TVN_MASK);
-				head = tv2.vector[i];		
+				i = (int)((expires >>> SHIFT_1) & TVN_MASK);
+				tv = tv2;
 			}
 			else if (idx < LIMIT_3) {
-				int i = (int)((expires >>> SHIFT_2) & TVN_MASK);
-				head = tv3.vector[i];					
+				i = (int)((expires >>> SHIFT_2) & TVN_MASK);
+				tv = tv3;
 			}
 			else if (idx < LIMIT_4) {
-				int i = (int)((expires >>> SHIFT_3) & TVN_MASK);
-				head = tv4.vector[i];
+				i = (int)((expires >>> SHIFT_3) & TVN_MASK);
+				tv = tv4;
 			}
 			else if (idx < LIMIT_5) {
-				int i = (int)((expires >>> SHIFT_4) & TVN_MASK);
-				head = tv5.vector[i];
+				i = (int)((expires >>> SHIFT_4) & TVN_MASK);
+				tv = tv5;
 			}
 			else {
 				return false;
 			}
 		}
 		else {
-			int i = (int)(timer_jiffies & TVR_MASK);
-			head = tv1.vector[i];
+			i = (int)(timer_jiffies & TVR_MASK);
+			tv = tv1;
 		}
-		head.addTail(node.head);
+		tv.vector[i].addTail(node.head);
+		tv.bitmap[i >> 6] |= 1L << (i & 63);
 		node.core = this;
 		return true;
 	}
@@ -310,6 +317,82 @@ public class CoreInt {
 		return update(jiffies);
 	}
 	
+	// offset of the first non-empty slot counting from start, wrapping
+	// around, -1 for none. stale bits found on the way are cleared.
+	private static int search(TimeVector tv, int start) {
+		int size = tv.vector.length;
+		int mask = size - 1;
+		long[] bitmap = tv.bitmap;
+		int j = 0;
+		while (j < size) {
+			int i = (start + j) & mask;
+			long word = bitmap[i >> 6] >>> (i & 63);
+			if (word == 0) {
+				j += 64 - (i & 63);
+				continue;
+			}
+			j += Long.numberOfTrailingZeros(word);
+			if (j >= size) break;
+			i = (start + j) & mask;
+			if (tv.vector[i].empty() == false) {
+				return j;
+			}
+			bitmap[i >> 6] &= ~(1L << (i & 63));
+			j++;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Earliest jiffies that needs run(): exact for timers in tv1, for 
+	 * the outer levels it is the time their slot cascades down, which 
+	 * is never later than the real expiration.
+	 * @return jiffies, -1 for no timer pending
+	 */
+	public long nextExpiry() {
+		if (tvs == null) return -1;
+		long jiffies = timer_jiffies;
+		long next = -1;
+		int j = search(tv1, (int)(jiffies & TVR_MASK));
+		if (j >= 0) {
+			next = jiffies + j;
+		}
+		for (int n = 1; n < 5; n++) {
+			int shift = SHIFTS[n - 1];
+			long block = jiffies >>> shift;
+			if ((jiffies & ((1L << shift) - 1)) != 0) {
+				block++;    // slot of the current block is cascaded
+			}
+			j = search(tvs[n], (int)(block & TVN_MASK));
+			if (j >= 0) {
+				long cascade = (block + j) << shift;
+				if (next < 0 || cascade < next) {
+					next = cascade;
+				}
+			}
+		}
+		return next;
+	}
+	
+	/**
+	 * count timers queued in one level by walking its lists, O(n) so
+	 * meant for monitoring, not for every tick
+	 * @param level 0 for tv1 .. 4 for tv5
+	 * @return number of timers
+	 */
+	public long occupancy(int level) {
+		if (tvs == null || level < 0 || level >= 5) return 0;
+		CoreHead[] vector = tvs[level].vector;
+		long count = 0;
+		for (int i = 0; i < vector.length; i++) {
+			CoreHead head = vector[i];
+			for (CoreHead it = head.getNext(); it != head; it = it.getNext()) {
+				count++;
+			}
+		}
+		return count;
+	}
+	
 	/**
 	 * testing case
 	 * @param argv
@@ -0,0 +1,275 @@
+//=====================================================================
+//
+// asclib.core.CoreList - Typed Intrusive List
+//
+// NOTE:
+// Same idea as CoreHead, but typed and without finalizer: a Node can
+// be embedded (subclassed) by the element itself, and is linked into
+// at most one list at a time.
+//
+//=====================================================================
+package asclib.core;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+
+/**
+ * Typed doubly linked intrusive list
+ *
+ */
+public class CoreList<E> implements Iterable<E> {
+
+	/**
+	 * list node, extend it to make an intrusive element
+	 */
+	public static class Node<E> {
+		private Node<E> next = null;
+		private Node<E> prev = null;
+		private CoreList<E> list = null;
+		private E element = null;
+
+		public Node() {
+		}
+
+		public Node(E element) {
+			this.element = element;
+		}
+
+		/**
+		 * @return the element, or the node itself when it is the element
+		 * (an intrusive subclass, Entry extends Node&lt;Entry&gt;)
+		 */
+		@SuppressWarnings("unchecked")
+		public E get() {
+			return (element != null)? element : (E)this;
+		}
+
+		public void set(E element) {
+			this.element = element;
+		}
+
+		/**
+		 * @return the list containing this node, null for none
+		 */
+		public CoreList<E> list() {
+			return list;
+		}
+
+		public boolean linked() {
+			return list != null;
+		}
+
+		/**
+		 * @return next node in the list, null at the end
+		 */
+		public Node<E> getNext() {
+			return (list == null || next == list.head)? null : next;
+		}
+
+		/**
+		 * @return previous node in the list, null at the beginning
+		 */
+		public Node<E> getPrev() {
+			return (list == null || prev == list.head)? null : prev;
+		}
+
+		/**
+		 * remove from the list it belongs to
+		 */
+		public void remove() {
+			if (list != null) {
+				list.remove(this);
+			}
+		}
+	}
+
+	private final Node<E> head = new Node<E>();
+	private int size = 0;
+
+	public CoreList() {
+		head.next = head;
+		head.prev = head;
+	}
+
+	// node must be unlinked before prev / next are taken
+	private void link(Node<E> prev, Node<E> node, Node<E> next) {
+		node.prev = prev;
+		node.next = next;
+		prev.next = node;
+		next.prev = node;
+		node.list = this;
+		size++;
+	}
+
+	/**
+	 * insert at the beginning, the node is removed from its list first
+	 */
+	public void addHead(Node<E> node) {
+		if (node.list != null) node.list.remove(node);
+		link(head, node, head.next);
+	}
+
+	/**
+	 * insert at the end, the node is removed from its list first
+	 */
+	public void addTail(Node<E> node) {
+		if (node.list != null) node.list.remove(node);
+		link(head.prev, node, head);
+	}
+
+	/**
+	 * insert node after position (which must be in this list)
+	 */
+	public void addAfter(Node<E> position, Node<E> node) {
+		if (position.list != this) throw new IllegalArgumentException("position not in list");
+		if (position == node) return;
+		if (node.list != null) node.list.remove(node);
+		link(position, node, position.next);
+	}
+
+	/**
+	 * insert node before position (which must be in this list)
+	 */
+	public void addBefore(Node<E> position, Node<E> node) {
+		if (position.list != this) throw new IllegalArgumentException("position not in list");
+		if (position == node) return;
+		if (node.list != null) node.list.remove(node);
+		link(position.prev, node, position);
+	}
+
+	/**
+	 * unlink the node
+	 * @return false if it is not in this list
+	 */
+	public boolean remove(Node<E> node) {
+		if (node.list != this) return false;
+		node.prev.next = node.next;
+		node.next.prev = node.prev;
+		node.next = null;
+		node.prev = null;
+		node.list = null;
+		size--;
+		return true;
+	}
+
+	public void moveHead(Node<E> node) {
+		if (node.list == this && head.next == node) return;
+		addHead(node);
+	}
+
+	public void moveTail(Node<E> node) {
+		if (node.list == this && head.prev == node) return;
+		addTail(node);
+	}
+
+	public Node<E> first() {
+		return (size == 0)? null : head.next;
+	}
+
+	public Node<E> last() {
+		return (size == 0)? null : head.prev;
+	}
+
+	public Node<E> popHead() {
+		Node<E> node = first();
+		if (node != null) remove(node);
+		return node;
+	}
+
+	public Node<E> popTail() {
+		Node<E> node = last();
+		if (node != null) remove(node);
+		return node;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean empty() {
+		return size == 0;
+	}
+
+	/**
+	 * unlink all the nodes
+	 */
+	public void clear() {
+		Node<E> node = head.next;
+		while (node != head) {
+			Node<E> next = node.next;
+			node.next = null;
+			node.prev = null;
+			node.list = null;
+			node = next;
+		}
+		head.next = head;
+		head.prev = head;
+		size = 0;
+	}
+
+	/**
+	 * iterate elements from head to tail, remove() is supported
+	 */
+	@Override
+	public Iterator<E> iterator() {
+		return new Iterator<E>() {
+			private Node<E> cursor = head.next;
+			private Node<E> current = null;
+
+			@Override
+			public boolean hasNext() {
+				return cursor != head;
+			}
+
+			@Override
+			public E next() {
+				if (cursor == head) throw new NoSuchElementException();
+				current = cursor;
+				cursor = cursor.next;
+				return current.get();
+			}
+
+			@Override
+			public void remove() {
+				if (current == null) throw new IllegalStateException();
+				CoreList.this.remove(current);
+				current = null;
+			}
+		};
+	}
+
+	/**
+	 * testing case
+	 * @param argv
+	 */
+	public static void main(String[] argv) {
+		CoreList<String> list = new CoreList<String>();
+		Node<String> a = new Node<String>("a");
+		Node<String> b = new Node<String>("b");
+		Node<String> c = new Node<String>("c");
+		list.addTail(a);
+		list.addTail(b);
+		list.addHead(c);
+		for (String s: list) System.out.print(s + " ");
+		System.out.println("size=" + list.size());
+		list.moveTail(c);
+		list.addAfter(a, new Node<String>("d"));
+		b.remove();
+		for (String s: list) System.out.print(s + " ");
+		System.out.println("size=" + list.size());
+		CoreList<String> other = new CoreList<String>();
+		other.addTail(a);
+		for (String s: list) System.out.print(s + " ");
+		System.out.println("size=" + list.size() + " other=" + other.size());
+		// intrusive: the node is the element
+		class Item extends Node<Item> {
+			int value;
+			Item(int value) { this.value = value; }
+		}
+		CoreList<Item> items = new CoreList<Item>();
+		for (int i = 0; i < 3; i++) items.addTail(new Item(i));
+		for (Item item: items) System.out.print(item.value + " ");
+		System.out.println("first=" + items.first().get().value);
+	}
+}
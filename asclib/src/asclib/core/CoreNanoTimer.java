@@ -0,0 +1,355 @@
+//=====================================================================
+//
+// asclib.core.CoreNanoTimer - High Resolution Timer
+//
+// NOTE:
+// Deadlines are System.nanoTime() values. A CoreWheel of configurable
+// tick granularity keeps the coarse range, timers of the current tick
+// are moved into a small binary heap which orders them exactly.
+//
+//=====================================================================
+package asclib.core;
+
+import java.util.concurrent.locks.LockSupport;
+
+import asclib.core.CoreKit;
+import asclib.core.CoreWheel;
+
+
+/**
+ * High resolution timer: wheel for coarse ranges, heap for sub-tick
+ *
+ */
+public class CoreNanoTimer {
+	private static final long RANGE = (1L << 32) - 1;   // 5-level wheel
+
+	private CoreWheel wheel = null;
+	private long tick = 0;
+	private Runnable[] tasks = null;
+	private long[] deadlines = null;
+	private int[] positions = null;       // index in heap, -1 for none
+	private int[] heap = null;
+	private int heapSize = 0;
+	private volatile boolean running = false;
+	private volatile Thread runner = null;
+
+	/**
+	 * CoreNanoTimer Constructor
+	 * @param tick granularity of the wheel in nanosec (eg. 100000)
+	 */
+	public CoreNanoTimer(long tick) {
+		if (tick < 1000) tick = 1000;
+		this.tick = tick;
+		CoreWheel.Handler handler = new CoreWheel.Handler() {
+			@Override
+			public void OnTimer(int handle, long data) {
+				expire(handle);
+			}
+		};
+		wheel = new CoreWheel(ticks(System.nanoTime()), handler, 64);
+		tasks = new Runnable[64];
+		deadlines = new long[64];
+		positions = new int[64];
+		heap = new int[64];
+	}
+
+	// nanoTime may be negative, round towards negative infinity
+	private long ticks(long nanos) {
+		long t = nanos / tick;
+		if (nanos < 0 && t * tick != nanos) t--;
+		return t;
+	}
+
+	private int check(int handle) {
+		if (handle < 0 || handle >= tasks.length) return -1;
+		if (tasks[handle] == null) return -1;
+		return handle;
+	}
+
+	/**
+	 * allocate a timer handle
+	 * @param task what to run when the deadline is reached
+	 * @return handle (>= 0)
+	 */
+	public int create(Runnable task) {
+		int handle = wheel.create(0);
+		if (handle >= tasks.length) {
+			int size = tasks.length * 2;
+			while (size <= handle) size *= 2;
+			Runnable[] t = new Runnable[size];
+			System.arraycopy(tasks, 0, t, 0, tasks.length);
+			tasks = t;
+			deadlines = CoreKit.realloc(deadlines, size);
+			positions = CoreKit.realloc(positions, size);
+			heap = CoreKit.realloc(heap, size);
+		}
+		tasks[handle] = task;
+		deadlines[handle] = 0;
+		positions[handle] = -1;
+		return handle;
+	}
+
+	/**
+	 * cancel and release the handle
+	 */
+	public boolean free(int handle) {
+		if (check(handle) < 0) return false;
+		cancel(handle);
+		tasks[handle] = null;
+		wheel.free(handle);
+		return true;
+	}
+
+	/**
+	 * schedule (or reschedule) at an absolute deadline
+	 * @param handle timer handle
+	 * @param deadline System.nanoTime() based time
+	 * @return true for success, false for invalid handle
+	 */
+	public boolean schedule(int handle, long deadline) {
+		if (check(handle) < 0) return false;
+		cancel(handle);
+		deadlines[handle] = deadline;
+		arm(handle);
+		return true;
+	}
+
+	/**
+	 * schedule after a delay from now
+	 * @param handle timer handle
+	 * @param delay nanosec
+	 */
+	public boolean scheduleAfter(int handle, long delay) {
+		return schedule(handle, System.nanoTime() + delay);
+	}
+
+	/**
+	 * cancel a pending timer
+	 * @return true if it was pending
+	 */
+	public boolean cancel(int handle) {
+		if (check(handle) < 0) return false;
+		if (positions[handle] >= 0) {
+			remove(positions[handle]);
+			return true;
+		}
+		return wheel.cancel(handle);
+	}
+
+	public boolean pending(int handle) {
+		if (check(handle) < 0) return false;
+		return positions[handle] >= 0 || wheel.pending(handle);
+	}
+
+	public long deadline(int handle) {
+		return (check(handle) < 0)? -1 : deadlines[handle];
+	}
+
+	/**
+	 * @return number of scheduled timers
+	 */
+	public int size() {
+		return wheel.pending() + heapSize;
+	}
+
+	public long tick() {
+		return tick;
+	}
+
+	// into the wheel if its tick is not reached yet, otherwise the heap
+	private void arm(int handle) {
+		long t = ticks(deadlines[handle]);
+		long current = wheel.jiffies();
+		if (t < current) {
+			push(handle);
+		}	else {
+			if (t - current > RANGE) t = current + RANGE;
+			wheel.start(handle, t);
+		}
+	}
+
+	// called by wheel.run(): the tick of the handle has been reached,
+	// or it was clamped to the wheel range and needs re-arming.
+	private void expire(int handle) {
+		arm(handle);
+	}
+
+	private void push(int handle) {
+		int i = heapSize++;
+		heap[i] = handle;
+		positions[handle] = i;
+		up(i);
+	}
+
+	private void remove(int i) {
+		int handle = heap[i];
+		int last = heap[--heapSize];
+		positions[handle] = -1;
+		if (i < heapSize) {
+			heap[i] = last;
+			positions[last] = i;
+			up(i);
+			down(positions[last]);
+		}
+	}
+
+	private void up(int i) {
+		int handle = heap[i];
+		long d = deadlines[handle];
+		while (i > 0) {
+			int p = (i - 1) >> 1;
+			int h = heap[p];
+			if (deadlines[h] - d <= 0) break;
+			heap[i] = h;
+			positions[h] = i;
+			i = p;
+		}
+		heap[i] = handle;
+		positions[handle] = i;
+	}
+
+	private void down(int i) {
+		int handle = heap[i];
+		long d = deadlines[handle];
+		int half = heapSize >> 1;
+		while (i < half) {
+			int c = (i << 1) + 1;
+			int r = c + 1;
+			if (r < heapSize && deadlines[heap[r]] - deadlines[heap[c]] < 0) c = r;
+			int h = heap[c];
+			if (d - deadlines[h] <= 0) break;
+			heap[i] = h;
+			positions[h] = i;
+			i = c;
+		}
+		heap[i] = handle;
+		positions[handle] = i;
+	}
+
+	/**
+	 * run every timer whose deadline <= now, in deadline order
+	 * @param now System.nanoTime()
+	 * @return how many timers invoked
+	 */
+	public int poll(long now) {
+		long t = ticks(now);
+		if (t >= wheel.jiffies()) {
+			wheel.run(t);
+		}
+		int count = 0;
+		while (heapSize > 0) {
+			int handle = heap[0];
+			if (deadlines[handle] - now > 0) break;
+			remove(0);
+			tasks[handle].run();
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * when poll() needs to be called again
+	 * @param now System.nanoTime()
+	 * @return the earlier of the heap top and the start of the tick in
+	 * which the wheel expires next, -1 when nothing is scheduled
+	 */
+	public long nextDeadline(long now) {
+		long next = (heapSize > 0)? deadlines[heap[0]] : -1;
+		long expiry = wheel.nextExpiry();
+		if (expiry >= 0) {
+			long boundary = expiry * tick;
+			if (next == -1 || boundary - next < 0) next = boundary;
+		}
+		return next;
+	}
+
+	/**
+	 * busy-spin/park hybrid loop for latency critical threads: parks
+	 * while the next deadline is farther than spin nanosec, then spins
+	 * on System.nanoTime(). returns after stop().
+	 * @param spin nanosec to busy wait before a deadline (eg. 50000)
+	 * @param idle max nanosec to park when nothing is scheduled
+	 */
+	public void run(long spin, long idle) {
+		runner = Thread.currentThread();
+		running = true;
+		while (running) {
+			long now = System.nanoTime();
+			poll(now);
+			now = System.nanoTime();
+			long next = nextDeadline(now);
+			long wait = (next == -1)? idle : next - now;
+			if (wait > spin) {
+				LockSupport.parkNanos(this, wait - spin);
+			}
+			else {
+				while (running && System.nanoTime() - next < 0) {
+				}
+			}
+		}
+		runner = null;
+	}
+
+	/**
+	 * stop run(), can be called from any thread
+	 */
+	public void stop() {
+		running = false;
+		Thread thread = runner;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/**
+	 * testing case
+	 * @param argv
+	 */
+	public static void main(String[] argv) throws Exception {
+		final CoreNanoTimer timer = new CoreNanoTimer(100000);
+		final int N = 20000;
+		final long period = 100000;          // 100us pacing
+		final long[] error = new long[N];
+		final int[] fired = new int[1];
+		final long[] next = new long[1];
+		final int[] handle = new int[1];
+		handle[0] = timer.create(new Runnable() {
+			@Override
+			public void run() {
+				long now = System.nanoTime();
+				if (fired[0] < N) {
+					error[fired[0]++] = now - next[0];
+				}
+				if (fired[0] >= N) {
+					timer.stop();
+					return;
+				}
+				next[0] += period;
+				timer.schedule(handle[0], next[0]);
+			}
+		});
+		// ordering inside one tick
+		final StringBuilder order = new StringBuilder();
+		long base = System.nanoTime() + 5000000;
+		for (int i = 0; i < 5; i++) {
+			final int k = i;
+			int h = timer.create(new Runnable() {
+				@Override
+				public void run() {
+					order.append(k);
+				}
+			});
+			timer.schedule(h, base + (4 - i) * 10000);
+		}
+		// only wheel timers: sleep until their tick, not the next one
+		long now = System.nanoTime();
+		System.out.printf("next deadline in %.1fus\n", (timer.nextDeadline(now) - now) / 1000.0);
+		next[0] = System.nanoTime() + period;
+		timer.schedule(handle[0], next[0]);
+		timer.run(50000, 10000000);
+		java.util.Arrays.sort(error);
+		System.out.printf("order=%s fired=%d error(us): p50=%.1f p99=%.1f max=%.1f\n",
+				order, fired[0], error[N / 2] / 1000.0, error[N * 99 / 100] / 1000.0,
+				error[N - 1] / 1000.0);
+	}
+}
@@ -1,8 +1,8 @@
 package asclib.core;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 
 public class CoreRedis {
@@ -16,27 +16,560 @@ public class CoreRedis {
 		public char cmd = 0; 
 		public byte[] data = null; 
 		public int value = 0; 
+		public long number = 0;
 		public Element[] child = null;
 	}
 	
-	private CoreReader _reader = new CoreReader();
+	/**
+	 * A reply parsed into flat arrays instead of an Element tree. Nodes
+	 * are numbered in pre-order (0 is the reply itself), so the subtree
+	 * of node i is [i, end(i)). Strings are stored in one byte arena and
+	 * integers are kept in 64 bits, nothing is boxed. Frames are pooled
+	 * by CoreRedis, don't keep them after recycle().
+	 */
+	public static class Frame {
+		private byte[] types = new byte[16];
+		private long[] values = new long[16];
+		private int[] offs = new int[16];
+		private int[] lens = new int[16];
+		private int[] ends = new int[16];
+		private int count = 0;
+		private byte[] data = new byte[256];
+		private int dataSize = 0;
+		private int[] kids = new int[16];
+		private int kidsSize = 0;
+		
+		public Frame reset() {
+			count = 0;
+			dataSize = 0;
+			kidsSize = 0;
+			return this;
+		}
+		
+		// append a node, data (if any) is copied into the arena
+		int add(int type, long value, byte[] buf, int start, int len) {
+			if (count >= types.length) {
+				int newsize = types.length * 2;
+				types = CoreKit.realloc(types, newsize);
+				values = CoreKit.realloc(values, newsize);
+				offs = CoreKit.realloc(offs, newsize);
+				lens = CoreKit.realloc(lens, newsize);
+				ends = CoreKit.realloc(ends, newsize);
+			}
+			int i = count++;
+			types[i] = (byte)type;
+			values[i] = value;
+			offs[i] = dataSize;
+			lens[i] = len;
+			ends[i] = count;
+			if (len > 0) {
+				if (dataSize + len > data.length) {
+					int newsize = data.length;
+					while (newsize < dataSize + len) newsize <<= 1;
+					data = CoreKit.realloc(data, newsize);
+				}
+				System.arraycopy(buf, start, data, dataSize, len);
+				dataSize += len;
+			}
+			if (type == '*' && value > 0) {
+				int need = (int)value;
+				if (kidsSize + need > kids.length) {
+					int newsize = kids.length;
+					while (newsize < kidsSize + need) newsize <<= 1;
+					kids = CoreKit.realloc(kids, newsize);
+				}
+				offs[i] = kidsSize;
+				kidsSize += need;
+			}
+			return i;
+		}
+		
+		void link(int parent, int index, int child) {
+			kids[offs[parent] + index] = child;
+		}
+		
+		void close(int i) {
+			ends[i] = count;
+		}
+		
+		/**
+		 * how many nodes in the frame
+		 */
+		public int size() {
+			return count;
+		}
+		
+		/**
+		 * type of node: '+', '-', ':', '$' or '*'
+		 */
+		public char type(int i) {
+			return (char)types[i];
+		}
+		
+		/**
+		 * null bulk string ($-1) or null array (*-1)
+		 */
+		public boolean isNull(int i) {
+			return lens[i] < 0;
+		}
+		
+		public boolean isError(int i) {
+			return types[i] == '-';
+		}
+		
+		/**
+		 * get integer of ':' node, or parse the decimal in a string node
+		 */
+		public long getLong(int i) {
+			if (types[i] == ':' || types[i] == '*' || lens[i] < 0) return values[i];
+			long value = 0;
+			boolean negative = false;
+			for (int p = offs[i], end = offs[i] + lens[i]; p < end; p++) {
+				byte cc = data[p];
+				if (cc == '-') negative = true;
+				else if (cc >= '0' && cc <= '9') value = value * 10 + (cc - '0');
+			}
+			return negative? -value : value;
+		}
+		
+		public int getInt(int i) {
+			return (int)getLong(i);
+		}
+		
+		/**
+		 * get the content of a string node without copy
+		 * @return read-only view, or null for null bulk string
+		 */
+		public ByteBuffer getBytesView(int i) {
+			if (lens[i] < 0 || types[i] == '*' || types[i] == ':') return null;
+			return ByteBuffer.wrap(data, offs[i], lens[i]).slice().asReadOnlyBuffer();
+		}
+		
+		/**
+		 * the arena which contains string nodes, see offset() and length()
+		 */
+		public byte[] array() {
+			return data;
+		}
+		
+		public int offset(int i) {
+			return offs[i];
+		}
+		
+		/**
+		 * length of a string node, -1 for null
+		 */
+		public int length(int i) {
+			if (types[i] == '*' || types[i] == ':') return (lens[i] < 0)? -1 : 0;
+			return lens[i];
+		}
+		
+		public byte[] getBytes(int i) {
+			if (lens[i] < 0) return null;
+			byte[] b = new byte[length(i)];
+			System.arraycopy(data, offs[i], b, 0, b.length);
+			return b;
+		}
+		
+		public String getString(int i) {
+			if (lens[i] < 0) return null;
+			return new String(data, offs[i], length(i), CoreReader.UTF8_CHARSET);
+		}
+		
+		/**
+		 * element count of array node, -1 for null array or not array
+		 */
+		public int arrayLength(int i) {
+			if (types[i] != '*' || lens[i] < 0) return -1;
+			return (int)values[i];
+		}
+		
+		/**
+		 * get the k-th element of array node i
+		 * @return node index
+		 */
+		public int child(int i, int k) {
+			return kids[offs[i] + k];
+		}
+		
+		/**
+		 * index after the subtree of node i
+		 */
+		public int end(int i) {
+			return ends[i];
+		}
+		
+		/**
+		 * copy the subtree of node i into frame, where it becomes node 0
+		 * @return frame
+		 */
+		public Frame copy(int i, Frame frame) {
+			frame.reset();
+			copyNode(i, frame);
+			return frame;
+		}
+		
+		private int copyNode(int i, Frame frame) {
+			int n = frame.add(types[i], values[i], data, offs[i], lens[i]);
+			if (types[i] == '*' && lens[i] >= 0) {
+				for (int k = 0; k < (int)values[i]; k++) {
+					frame.link(n, k, copyNode(child(i, k), frame));
+				}
+				frame.close(n);
+			}
+			return n;
+		}
+		
+		/**
+		 * Translate node to Object (same as CoreRedis.translate)
+		 */
+		public Object translate(int i, boolean convert) {
+			switch (types[i]) {
+			case '+':
+			case '$':
+				if (lens[i] < 0) return null;
+				if (convert) return getString(i);
+				return getBytes(i);
+			case '-':
+				return new RedisError(getString(i));
+			case ':':
+				return integer(values[i]);
+			case '*':
+				if (lens[i] < 0) return null;
+				int size = (int)values[i];
+				ArrayList<Object> array = new ArrayList<Object>(size);
+				for (int k = 0; k < size; k++) {
+					array.add(translate(child(i, k), convert));
+				}
+				return array;
+			}
+			return new RedisError("unknow command: '" + (char)types[i] + "'");
+		}
+	}
+	
+	/**
+	 * Consumer of large bulk strings, see {@link CoreRedis#stream(int, BulkStream)}
+	 */
+	public static abstract class BulkStream {
+		/**
+		 * invoked when a large bulk string starts
+		 * @param size total size in bytes
+		 */
+		public abstract void OnBegin(int size);
+		
+		/**
+		 * invoked for every chunk received, data is only valid inside the call
+		 */
+		public abstract void OnData(byte[] data, int offset, int length);
+		
+		/**
+		 * invoked when the bulk string is finished
+		 */
+		public abstract void OnEnd();
+	}
+	
+	private static Object integer(long x) {
+		if (x == (int)x) return Integer.valueOf((int)x);
+		return Long.valueOf(x);
+	}
+	
+	/**
+	 * RESP encoder which writes directly into a reusable growable buffer,
+	 * integers are formatted and strings are encoded in UTF-8 without any
+	 * intermediate String or byte[], so it allocates nothing once the
+	 * buffer has grown large enough.
+	 */
+	public static class Encoder {
+		private byte[] buf = null;
+		private int size = 0;
+		
+		public Encoder(int capacity) {
+			buf = new byte[(capacity < 64)? 64 : capacity];
+		}
+		
+		public Encoder() {
+			this(1024);
+		}
+		
+		/**
+		 * get the internal buffer
+		 */
+		public byte[] array() {
+			return buf;
+		}
+		
+		/**
+		 * get how many bytes have been encoded
+		 */
+		public int size() {
+			return size;
+		}
+		
+		/**
+		 * clear encoded data
+		 */
+		public Encoder reset() {
+			size = 0;
+			return this;
+		}
+		
+		private void reserve(int need) {
+			if (size + need > buf.length) {
+				int newsize = buf.length;
+				while (newsize < size + need) newsize <<= 1;
+				buf = CoreKit.realloc(buf, newsize);
+			}
+		}
 		
+		private static int digits(long x) {
+			int n = 1;
+			if (x < 0) {
+				n++;
+				if (x == Long.MIN_VALUE) return 20;
+				x = -x;
+			}
+			while (x >= 10) {
+				x /= 10;
+				n++;
+			}
+			return n;
+		}
+		
+		private void number(long x) {
+			if (x == Long.MIN_VALUE) {
+				reserve(20);
+				for (int i = 0; i < T_MINLONG.length; i++) {
+					buf[size++] = T_MINLONG[i];
+				}
+				return;
+			}
+			int n = digits(x);
+			reserve(n);
+			if (x < 0) {
+				buf[size] = '-';
+				x = -x;
+			}
+			int pos = size + n;
+			do {
+				buf[--pos] = (byte)('0' + (x % 10));
+				x /= 10;
+			}	while (x > 0);
+			size += n;
+		}
+		
+		private void header(byte mode, long x) {
+			reserve(1);
+			buf[size++] = mode;
+			number(x);
+			reserve(2);
+			buf[size++] = '\r';
+			buf[size++] = '\n';
+		}
+		
+		private void crlf() {
+			reserve(2);
+			buf[size++] = '\r';
+			buf[size++] = '\n';
+		}
+		
+		/**
+		 * write array header: *count\r\n
+		 */
+		public Encoder array(int count) {
+			header((byte)'*', count);
+			return this;
+		}
+		
+		/**
+		 * write null bulk string: $-1\r\n
+		 */
+		public Encoder nil() {
+			header((byte)'$', -1);
+			return this;
+		}
+		
+		/**
+		 * write integer reply: :x\r\n
+		 */
+		public Encoder integer(long x) {
+			header((byte)':', x);
+			return this;
+		}
+		
+		/**
+		 * write simple string (+) or error (-) reply, text must not 
+		 * contain CR or LF
+		 */
+		public Encoder line(char mode, CharSequence text) {
+			int length = text.length();
+			reserve(length + 3);
+			buf[size++] = (byte)mode;
+			for (int i = 0; i < length; i++) {
+				char ch = text.charAt(i);
+				buf[size++] = (byte)((ch < 0x80)? ch : '?');
+			}
+			buf[size++] = '\r';
+			buf[size++] = '\n';
+			return this;
+		}
+		
+		/**
+		 * write bulk string from bytes
+		 */
+		public Encoder bulk(byte[] b, int off, int len) {
+			header((byte)'$', len);
+			reserve(len + 2);
+			System.arraycopy(b, off, buf, size, len);
+			size += len;
+			crlf();
+			return this;
+		}
+		
+		public Encoder bulk(byte[] b) {
+			return bulk(b, 0, b.length);
+		}
+		
+		/**
+		 * write bytes which have already been encoded
+		 */
+		public Encoder raw(byte[] b, int off, int len) {
+			reserve(len);
+			System.arraycopy(b, off, buf, size, len);
+			size += len;
+			return this;
+		}
+		
+		/**
+		 * write bulk string of a decimal integer
+		 */
+		public Encoder bulk(long x) {
+			header((byte)'$', digits(x));
+			number(x);
+			crlf();
+			return this;
+		}
+		
+		/**
+		 * write bulk string in UTF-8
+		 */
+		public Encoder bulk(CharSequence s) {
+			int length = s.length();
+			int need = 0;
+			for (int i = 0; i < length; i++) {
+				char ch = s.charAt(i);
+				if (ch < 0x80) need += 1;
+				else if (ch < 0x800) need += 2;
+				else if (Character.isHighSurrogate(ch) && i + 1 < length && 
+						Character.isLowSurrogate(s.charAt(i + 1))) {
+					need += 4;
+					i++;
+				}
+				else need += 3;
+			}
+			header((byte)'$', need);
+			reserve(need + 2);
+			for (int i = 0; i < length; i++) {
+				int ch = s.charAt(i);
+				if (ch < 0x80) {
+					buf[size++] = (byte)ch;
+				}
+				else if (ch < 0x800) {
+					buf[size++] = (byte)(0xc0 | (ch >> 6));
+					buf[size++] = (byte)(0x80 | (ch & 0x3f));
+				}
+				else if (Character.isHighSurrogate((char)ch) && i + 1 < length && 
+						Character.isLowSurrogate(s.charAt(i + 1))) {
+					int cp = Character.toCodePoint((char)ch, s.charAt(++i));
+					buf[size++] = (byte)(0xf0 | (cp >> 18));
+					buf[size++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+					buf[size++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+					buf[size++] = (byte)(0x80 | (cp & 0x3f));
+				}
+				else {
+					if (Character.isSurrogate((char)ch)) ch = '?';
+					buf[size++] = (byte)(0xe0 | (ch >> 12));
+					buf[size++] = (byte)(0x80 | ((ch >> 6) & 0x3f));
+					buf[size++] = (byte)(0x80 | (ch & 0x3f));
+				}
+			}
+			crlf();
+			return this;
+		}
+		
+		/**
+		 * encode String, byte[], Number, List or Object[] (nested)
+		 */
+		public Encoder encode(Object o) {
+			if (o == null) {
+				nil();
+			}
+			else if (o instanceof String) {
+				bulk((String)o);
+			}
+			else if (o instanceof byte[]) {
+				bulk((byte[])o);
+			}
+			else if (o instanceof Long || o instanceof Integer || 
+					o instanceof Short || o instanceof Byte) {
+				bulk(((Number)o).longValue());
+			}
+			else if (o instanceof Number) {
+				bulk(String.valueOf((Number)o));
+			}
+			else if (o instanceof List) {
+				@SuppressWarnings("unchecked")
+				List<Object> list = (List<Object>)o;
+				array(list.size());
+				for (int i = 0, n = list.size(); i < n; i++) {
+					encode(list.get(i));
+				}
+			}
+			else if (o instanceof Object[]) {
+				Object[] array = (Object[])o;
+				array(array.length);
+				for (int i = 0; i < array.length; i++) {
+					encode(array[i]);
+				}
+			}
+			return this;
+		}
+	}
+	
+	private byte[] _buf = new byte[0x10000];
+	private int _head = 0;
+	private int _tail = 0;
+	private int _scan = 0;
+	
 	private int _state = 0;
-	private int _mode = 0;
 	private int _need = 0;
-	private int _position = 0;
-	private Iterator<Element> _it = null;
-	private ArrayDeque<Element> _input = new ArrayDeque<Element>();
+	private Element _bulk = null;
+	private Element[] _stack = new Element[8];
+	private int[] _index = new int[8];
+	private int _depth = 0;
 	private ArrayDeque<Element> _ready = new ArrayDeque<Element>();
 	
+	private boolean _flat = false;
+	private Frame _frame = null;
+	private int[] _nodes = new int[8];
+	private int _bulk_node = -1;
+	private ArrayDeque<Frame> _frames = new ArrayDeque<Frame>();
+	private ArrayDeque<Frame> _pool = new ArrayDeque<Frame>();
+	
+	private BulkStream _stream = null;
+	private int _stream_threshold = 0x100000;
+	private int _stream_size = -1;
+	
+	private static final int STATE_LINE = 0;
+	private static final int STATE_BULK = 1;
+	private static final int STATE_CRLF = 2;
+	
 	public void destroy() {
-		_it = null;		
-		if (_input != null) _input.clear();
-		if (_ready != null) _ready.clear();	
-		if (_reader != null) _reader.destroy();
-		_input = null;
+		if (_ready != null) _ready.clear();
 		_ready = null;
-		_reader = null;
+		_buf = null;
+		_stack = null;
+		_index = null;
+		_bulk = null;
 	}
 	
 	protected void finalize() throws java.lang.Throwable {
@@ -45,154 +578,344 @@ public class CoreRedis {
 	}
 	
 	public void clear() {
-		if (_input != null) _input.clear();
-		if (_ready != null) _ready.clear();	
-		if (_reader != null) _reader.clear();
-		_state = 0;
-		_mode = 0;
+		if (_ready != null) _ready.clear();
+		for (int i = 0; i < _depth; i++) _stack[i] = null;
+		_head = _tail = _scan = 0;
+		_state = STATE_LINE;
+		_need = 0;
+		_bulk = null;
+		_depth = 0;
+		_bulk_node = -1;
+		_stream_size = -1;
+		if (_frame != null) recycle(_frame);
+		_frame = null;
+		while (_frames != null && !_frames.isEmpty()) {
+			recycle(_frames.pollFirst());
+		}
+	}
+	
+	/**
+	 * Enable flat mode: replies are parsed into pooled Frames and read
+	 * by pollFrame() instead of poll(). Switch it only when no reply is
+	 * partially received.
+	 */
+	public void flat(boolean on) {
+		_flat = on;
+	}
+	
+	public boolean flat() {
+		return _flat;
+	}
+	
+	/**
+	 * Stream bulk strings which are not smaller than threshold: their
+	 * content is passed to the handler chunk by chunk as it arrives and
+	 * is never buffered as a whole. In the reply they are replaced by
+	 * null (Element.data is null and Element.value is the size, or a null
+	 * node whose getLong() is the size in flat mode).
+	 * @param threshold size in bytes
+	 * @param handler consumer, null to disable streaming
+	 */
+	public void stream(int threshold, BulkStream handler) {
+		_stream_threshold = (threshold > 0)? threshold : 0;
+		_stream = handler;
 	}
 	
-	private byte[] trim(byte[] input) {
-		int length = input.length;
-		byte r = (byte)'\r';
-		byte n = (byte)'\n';
-		if (length == 0) return input;
-		while (length > 0) {
-			if (input[length - 1] != r && input[length - 1] != n) break;
-			length--;
+	/**
+	 * how many replies are finished but not polled yet
+	 */
+	public int ready() {
+		return _ready.size() + _frames.size();
+	}
+	
+	// pass streamed bulk data to the handler, returns true if finished
+	private boolean streamData(byte[] buf, int offset, int length) {
+		int n = (length < _need)? length : _need;
+		if (n > 0) {
+			_stream.OnData(buf, offset, n);
+			_need -= n;
 		}
-		if (length == input.length) return input;
-		byte[] t = new byte[length];
-		System.arraycopy(input, 0, t, 0, length);
-		return t;
+		return _need == 0;
 	}
 	
-	private int bytes2int(byte[] m) {
-		byte zero = (byte)'0';
-		byte nine = (byte)'9';
-		byte minus = (byte)'-';
-		int value = 0;
-		int length = m.length;
-		for (int i = 0; i < length; i++) {
-			byte cc = m[i];
-			if (cc == minus) return -1;
-			if (cc >= zero && cc <= nine) {
-				value = value * 10 + (cc - zero);
-			}
+	// the streamed bulk string is finished
+	private void streamEnd() {
+		_stream.OnEnd();
+		if (_flat) {
+			_bulk_node = node('$', _stream_size, _head, -1);
+		}	else {
+			_bulk = new Element();
+			_bulk.cmd = '$';
+			_bulk.data = null;
+			_bulk.value = _stream_size;
 		}
-		return value;
+		_stream_size = -1;
+		_state = STATE_CRLF;
 	}
 	
 	/**
-	 * feed data into CoreRedis
-	 * @param buf buffer
-	 * @param offset position
-	 * @param length size
+	 * append data to the input buffer, move the unread data to the front
+	 * or grow the buffer if there is not enough space.
 	 */
-	public void feed(byte[] buf, int offset, int length) {
-		_reader.feed(buf, offset, length);
-		while (true) {
-			if (_state == 0) {
-				_reader.mode(CoreReader.READ_BYTE, 0);
-				byte[] m = _reader.read();
-				if (m == null) break;
-				assert m.length == 1: "Fatal error in RedisReader.feed";
-				_mode = m[0];
-				_state = 1;
-			}
-			if (_state == 1) {
-				_reader.mode(CoreReader.READ_LINE, (int)'\n');
-				byte[] m = _reader.read();
-				if (m == null) break;
-				m = trim(m);
-				if (_mode != (int)'$') {
-					Element e = new Element();
-					e.cmd = (char)(_mode & 0xff);
-					e.data = m;
-					e.value = 0;
-					if (_mode == (int)'*' || _mode == (int)':') {
-						e.value = bytes2int(m);
-						if (e.value < 0 && _mode == (int)'*') {
-							e.data = null;
-						}
-					}
-					_input.add(e);
-					_state = 0;
-				}	else {
-					_need = bytes2int(m);
-					if (_need < 0) {
-						Element e = new Element();
-						e.cmd = (int)'$';
-						e.data = null;
-						e.value = -1;
-						_input.add(e);
-						_state = 0;
-					}	else {
-						_state = 2;
-					}
-				}
+	private void append(byte[] buf, int offset, int length) {
+		if (_tail + length > _buf.length) {
+			int size = _tail - _head;
+			if (size + length > _buf.length) {
+				int newsize = _buf.length;
+				while (newsize < size + length) newsize <<= 1;
+				byte[] newbuf = new byte[newsize];
+				System.arraycopy(_buf, _head, newbuf, 0, size);
+				_buf = newbuf;
+			}	
+			else if (size > 0) {
+				System.arraycopy(_buf, _head, _buf, 0, size);
 			}
-			if (_state == 2) {
-				_reader.mode(CoreReader.READ_BLOCK, _need);
-				byte[] m = _reader.read();
-				if (m == null) break;
-				Element e = new Element();
-				e.cmd = '$';
-				e.data = m;
-				e.value = 0;
-				_input.add(e);
-				_state = 3;
+			_scan -= _head;
+			_tail -= _head;
+			_head = 0;
+		}
+		System.arraycopy(buf, offset, _buf, _tail, length);
+		_tail += length;
+	}
+	
+	private long parseLong(int start, int end) {
+		long value = 0;
+		boolean negative = false;
+		for (int i = start; i < end; i++) {
+			byte cc = _buf[i];
+			if (cc == '-') negative = true;
+			else if (cc >= '0' && cc <= '9') {
+				value = value * 10 + (cc - '0');
 			}
-			if (_state == 3) {
-				_reader.mode(CoreReader.READ_LINE, (int)'\n');
-				byte[] m = _reader.read();
-				if (m == null) break;
-				_state = 0;
+		}
+		return negative? -value : value;
+	}
+	
+	private byte[] copy(int start, int end) {
+		byte[] b = new byte[end - start];
+		System.arraycopy(_buf, start, b, 0, end - start);
+		return b;
+	}
+	
+	/**
+	 * put a finished element into its parent array, or into the ready
+	 * queue if it is a top level reply.
+	 */
+	private void emit(Element e) {
+		while (_depth > 0) {
+			int top = _depth - 1;
+			Element parent = _stack[top];
+			parent.child[_index[top]++] = e;
+			if (_index[top] < parent.child.length) {
+				return;
 			}
+			_stack[top] = null;
+			_depth--;
+			e = parent;
 		}
-		while (true) {
-			_position = 0;
-			_it = _input.iterator();
-			Element e = parseToken();
-			if (e == null) break;
-			_it = null;
-			_ready.add(e);
-			for (int i = 0; i < _position; i++) {
-				_input.remove();
+		_ready.add(e);
+	}
+	
+	private void push(Element e) {
+		if (_depth >= _stack.length) {
+			Element[] stack = new Element[_depth * 2];
+			System.arraycopy(_stack, 0, stack, 0, _depth);
+			_stack = stack;
+			_index = CoreKit.realloc(_index, _depth * 2);
+		}
+		_stack[_depth] = e;
+		_index[_depth] = 0;
+		_depth++;
+	}
+	
+	// add a node to the current frame
+	private int node(int type, long value, int start, int len) {
+		if (_frame == null) {
+			_frame = _pool.isEmpty()? new Frame() : _pool.pollFirst();
+		}
+		return _frame.add(type, value, _buf, start, len);
+	}
+	
+	// flat version of emit()
+	private void finish(int n) {
+		while (_depth > 0) {
+			int top = _depth - 1;
+			int parent = _nodes[top];
+			_frame.link(parent, _index[top]++, n);
+			if (_index[top] < _frame.arrayLength(parent)) {
+				return;
 			}
+			_depth--;
+			_frame.close(parent);
+			n = parent;
 		}
+		_frames.add(_frame);
+		_frame = null;
 	}
 	
-	private Element nextElement() {
-		if (_it.hasNext() == false) return null;
-		Element e = _it.next();
-		_position++;
-		return e;
+	private void pushNode(int n) {
+		if (_depth >= _nodes.length) {
+			_nodes = CoreKit.realloc(_nodes, _depth * 2);
+			_index = CoreKit.realloc(_index, _depth * 2);
+		}
+		_nodes[_depth] = n;
+		_index[_depth] = 0;
+		_depth++;
 	}
 	
-	private Element parseToken() {
-		Element e = nextElement();
-		if (e == null) return null;
-		switch (e.cmd) {
-		case '+':
-		case '-':
-		case ':':			
-		case '$':
-			return e;
-		case '*':
+	// flat version of parseLine() after the line is found
+	private void parseNode(int mode, int start, int end) {
+		if (mode == '*') {
+			long count = parseLong(start, end);
+			if (count > 0) {
+				pushNode(node('*', count, start, 0));
+				return;
+			}
+			finish(node('*', 0, start, (count < 0)? -1 : 0));
+		}
+		else if (mode == ':') {
+			finish(node(':', parseLong(start, end), start, 0));
+		}
+		else {
+			finish(node(mode, 0, start, end - start));
+		}
+	}
+	
+	/**
+	 * parse one line (type byte + content), returns false if incomplete
+	 */
+	private boolean parseLine() {
+		int pos = _scan;
+		while (pos < _tail && _buf[pos] != '\n') pos++;
+		if (pos >= _tail) {
+			_scan = pos;
+			return false;
+		}
+		int start = _head + 1;
+		int end = pos;
+		while (end > start && (_buf[end - 1] == '\r' || _buf[end - 1] == '\n')) end--;
+		int mode = (pos > _head)? (_buf[_head] & 0xff) : 0;
+		_head = pos + 1;
+		_scan = _head;
+		if (mode == '$') {
+			_need = (int)parseLong(start, end);
+			if (_need < 0 && _flat) {
+				finish(node('$', 0, start, -1));
+			}
+			else if (_stream != null && _need >= _stream_threshold) {
+				_stream_size = _need;
+				_state = STATE_BULK;
+				_stream.OnBegin(_need);
+			}
+			else if (_need < 0) {
+				Element e = new Element();
+				e.cmd = '$';
+				e.data = null;
+				e.value = -1;
+				emit(e);
+			}	else {
+				_state = STATE_BULK;
+			}
+			return true;
+		}
+		if (_flat) {
+			parseNode(mode, start, end);
+			return true;
+		}
+		Element e = new Element();
+		e.cmd = (char)mode;
+		e.data = copy(start, end);
+		e.value = 0;
+		if (mode == '*') {
+			e.value = (int)parseLong(start, end);
 			if (e.value < 0) {
-				e.child = null;
-				return e;
+				e.data = null;
+				e.value = -1;
+			}	
+			else if (e.value == 0) {
+				e.child = new Element[0];
+			}	
+			else {
+				e.child = new Element[e.value];
+				push(e);
+				return true;
+			}
+		}
+		else if (mode == ':') {
+			e.number = parseLong(start, end);
+			e.value = (int)e.number;
+		}
+		emit(e);
+		return true;
+	}
+	
+	/**
+	 * feed data into CoreRedis, the parser is a resumable state machine
+	 * which works directly on the input buffer: every byte is scanned
+	 * only once, and nested arrays are tracked by an explicit stack.
+	 * @param buf buffer
+	 * @param offset position
+	 * @param length size
+	 */
+	public void feed(byte[] buf, int offset, int length) {
+		if (_state == STATE_BULK && _stream_size >= 0 && _head == _tail) {
+			int need = _need;
+			boolean done = streamData(buf, offset, length);
+			offset += need - _need;
+			length -= need - _need;
+			if (done) streamEnd();
+		}
+		append(buf, offset, length);
+		while (true) {
+			if (_state == STATE_LINE) {
+				if (parseLine() == false) break;
 			}
-			e.child = new Element[e.value];
-			for (int i = 0; i < e.value; i++) {
-				Element x = parseToken();
-				if (x == null) return null;
-				e.child[i] = x;
+			if (_state == STATE_BULK && _stream_size >= 0) {
+				int need = _need;
+				boolean done = streamData(_buf, _head, _tail - _head);
+				_head += need - _need;
+				_scan = _head;
+				if (!done) break;
+				streamEnd();
+			}
+			if (_state == STATE_BULK) {
+				if (_tail - _head < _need) break;
+				if (_flat) {
+					_bulk_node = node('$', 0, _head, _need);
+				}	else {
+					_bulk = new Element();
+					_bulk.cmd = '$';
+					_bulk.data = copy(_head, _head + _need);
+					_bulk.value = 0;
+				}
+				_head += _need;
+				_scan = _head;
+				_state = STATE_CRLF;
 			}
-			return e;
+			if (_state == STATE_CRLF) {
+				int pos = _scan;
+				while (pos < _tail && _buf[pos] != '\n') pos++;
+				if (pos >= _tail) {
+					_scan = pos;
+					break;
+				}
+				_head = pos + 1;
+				_scan = _head;
+				_state = STATE_LINE;
+				if (_flat) {
+					int n = _bulk_node;
+					_bulk_node = -1;
+					finish(n);
+					continue;
+				}
+				Element e = _bulk;
+				_bulk = null;
+				emit(e);
+			}
+		}
+		if (_head == _tail) {
+			_head = _tail = _scan = 0;
 		}
-		return e;
 	}
 	
 	public void feed(byte[] buf) {
@@ -222,7 +945,7 @@ public class CoreRedis {
 		case '-':
 			return new RedisError(new String(e.data, CoreReader.UTF8_CHARSET));
 		case ':':
-			return new Integer(e.value);
+			return integer(e.number);
 		case '*':
 			if (e.child == null) return null;
 			else {
@@ -245,8 +968,28 @@ public class CoreRedis {
 		return _ready.pollFirst();
 	}
 	
+	/**
+	 * Retrieves and removes the first frame in flat mode
+	 * @return frame, or null if not enough data
+	 */
+	public Frame pollFrame() {
+		return _frames.pollFirst();
+	}
+	
+	/**
+	 * give the frame back to the pool after use
+	 */
+	public void recycle(Frame frame) {
+		if (frame != null && _pool != null && _pool.size() < 16) {
+			_pool.add(frame.reset());
+		}
+	}
+	
 	private static final byte[] T_CRLF = "\r\n".getBytes(CoreReader.UTF8_CHARSET);
 	private static final byte[] T_NULL = "$-1\r\n".getBytes(CoreReader.UTF8_CHARSET);
+	private static final byte[] T_MINLONG = "-9223372036854775808".getBytes(CoreReader.UTF8_CHARSET);
+	
+	private Encoder _encoder = new Encoder();
 	
 	private void write(ArrayList<byte[]> output, byte[] o) {
 		output.add(o);
@@ -302,23 +1045,12 @@ public class CoreRedis {
 	}
 	
 	public byte[] serialize(Object o) {
-		ArrayList<byte[]> output = new ArrayList<byte[]>();
-		encode(output, o);
-		int size = 0;
-		int count = output.size();
-		int position = 0;
-		for (int i = 0; i < count; i++) size += output.get(i).length;
-		byte[] buf = new byte[size];
-		for (int i = 0; i < count; i++) {
-			byte[] s = output.get(i);
-			int length = s.length;
-			if (length > 0) {
-				System.arraycopy(s, 0, buf, position, length);
-				position += length;
-			}
-		}
-		output.clear();
-		output = null;
+		Encoder encoder = _encoder;
+		encoder.reset();
+		encoder.encode(o);
+		byte[] buf = new byte[encoder.size()];
+		System.arraycopy(encoder.array(), 0, buf, 0, encoder.size());
+		encoder.reset();
 		return buf;
 	}
 	
@@ -24,9 +24,9 @@ public class CoreSocket {
 	private int head_len = 0;
 	private int head_inc = 0;
 	
-	private Socket sock = null;
-	private BufferedInputStream istream = null;
-	private BufferedOutputStream ostream = null;
+	private volatile Socket sock = null;
+	private volatile BufferedInputStream istream = null;
+	private volatile BufferedOutputStream ostream = null;
 	
 	private byte[] head_data = null;
 	private int head_size = -1;
@@ -36,6 +36,9 @@ public class CoreSocket {
 	private String errorMsg = "";
 	private int errorCode = 0;
 	
+	private final Object rlock = new Object();
+	private final Object wlock = new Object();
+	
 	public CoreSocket() {
 		head_data = new byte[8];
 	}
@@ -138,10 +141,12 @@ public class CoreSocket {
 	}	
 	
 	private int readall(byte[] b, int off, int len) {
+		BufferedInputStream is = istream;
 		int total = 0;
+		if (is == null) return -1;
 		try {
 			while (len > 0) {
-				int readed = istream.read(b, off, len);
+				int readed = is.read(b, off, len);
 				if (readed < 0) {
 					except("read from socket stream eof", 1003);
 					return -1;
@@ -158,15 +163,29 @@ public class CoreSocket {
 		return total;
 	}
 	
-	public synchronized int read(byte[] b, int off, int len) {
+	/**
+	 * read a message, reading and writing can run in different threads.
+	 * @param b buffer, returns message size when b is null
+	 * @param off offset
+	 * @param len buffer size
+	 * @return message size, -1 for error, -2 for buffer size too small
+	 */
+	public int read(byte[] b, int off, int len) {
+		synchronized (rlock) {
+			return internalRead(b, off, len);
+		}
+	}
+	
+	private int internalRead(byte[] b, int off, int len) {
+		BufferedInputStream is = istream;
 		int readed = -1;
-		if (sock == null) return -1;
+		if (sock == null || is == null) return -1;
 		if (head_mod == 13) {
 			if (b == null) {
 				return 1024;
 			}
 			try {
-				readed = istream.read(b, off, len);
+				readed = is.read(b, off, len);
 			}	catch (IOException e) {
 				reset();
 				except("read from socket stream error: " + e.toString(), 1005);
@@ -213,12 +232,19 @@ public class CoreSocket {
 		return read(b, 0, b.length);
 	}
 	
-	public synchronized boolean write(byte[] b, int off, int len, int mask) {
+	public boolean write(byte[] b, int off, int len, int mask) {
+		synchronized (wlock) {
+			return internalWrite(b, off, len, mask);
+		}
+	}
+	
+	private boolean internalWrite(byte[] b, int off, int len, int mask) {
+		BufferedOutputStream os = ostream;
 		long size = len;
-		if (sock == null) return false;
+		if (sock == null || os == null) return false;
 		if (head_mod >= 13) {
 			try {
-				ostream.write(b, off, len);
+				os.write(b, off, len);
 			}
 			catch (IOException e) {
 				except("error: failed to write socket buffer", 1007);
@@ -239,8 +265,8 @@ public class CoreSocket {
 		case 5: CoreEncode.encode8u(head_data, 4, (int)(size)); break;
 		}
 		try {
-			ostream.write(head_data, 4, head_len);
-			ostream.write(b, off, len);
+			os.write(head_data, 4, head_len);
+			os.write(b, off, len);
 		}	catch (IOException e) {
 			reset();
 			except("error: failed to write socket buffer", 1008);
@@ -249,10 +275,26 @@ public class CoreSocket {
 		return true;
 	}
 	
-	public synchronized boolean write(byte[][] vector, int[] off, int[] len, int count, int mask) {
+	/**
+	 * write a message gathered from several buffers
+	 * @param vector buffers
+	 * @param off offsets of each buffer, null for all zeros
+	 * @param len sizes of each buffer, null for the whole buffer
+	 * @param count how many buffers, -1 for vector.length
+	 * @param mask mask (head mode 12 only)
+	 * @return true for success, false for error
+	 */
+	public boolean write(byte[][] vector, int[] off, int[] len, int count, int mask) {
+		synchronized (wlock) {
+			return internalWrite(vector, off, len, count, mask);
+		}
+	}
+	
+	private boolean internalWrite(byte[][] vector, int[] off, int[] len, int count, int mask) {
+		BufferedOutputStream os = ostream;
 		long size = 0;
 		long length = 0;
-		if (sock == null) return false;
+		if (sock == null || os == null) return false;
 		if (vector == null) return false;
 		if (count < 0) count = vector.length;
 		if (vector.length < count) return false;
@@ -271,9 +313,9 @@ public class CoreSocket {
 				for (int i = 0; i < count; i++) {
 					int offset = (off == null)? 0 : off[i];
 					if (len != null) {
-						ostream.write(vector[i], offset, len[i]);
+						os.write(vector[i], offset, len[i]);
 					}	else {
-						ostream.write(vector[i], offset, vector[i].length - offset);
+						os.write(vector[i], offset, vector[i].length - offset);
 					}
 				}
 			}
@@ -296,13 +338,13 @@ public class CoreSocket {
 		case 5: CoreEncode.encode8u(head_data, 4, (int)(size)); break;
 		}
 		try {
-			ostream.write(head_data, 4, head_len);
+			os.write(head_data, 4, head_len);
 			for (int i = 0; i < count; i++) {
 				int offset = (off == null)? 0 : off[i];
 				if (len == null) {
-					ostream.write(vector[i], offset, vector[i].length - offset);
+					os.write(vector[i], offset, vector[i].length - offset);
 				}	else {
-					ostream.write(vector[i], offset, len[i]);
+					os.write(vector[i], offset, len[i]);
 				}
 			}
 		}	catch (IOException e) {
@@ -316,10 +358,17 @@ public class CoreSocket {
 		return write(b, 0, b.length, 0);
 	}
 	
-	public synchronized boolean flush() {
-		if (sock != null && ostream != null) {
+	public boolean flush() {
+		synchronized (wlock) {
+			return internalFlush();
+		}
+	}
+	
+	private boolean internalFlush() {
+		BufferedOutputStream os = ostream;
+		if (sock != null && os != null) {
 			try {
-				ostream.flush();
+				os.flush();
 			}	catch (IOException e) {
 				reset();
 				except("error: failed to flush socket buffer", 1011);
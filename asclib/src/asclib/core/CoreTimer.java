@@ -8,9 +8,20 @@
 //=====================================================================
 package asclib.core;
 
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import asclib.core.CoreInt;
 
 public class CoreTimer {	
+	
+	/** run once per elapsed period, missed periods are caught up */
+	public static final int FIXED_RATE = 0;
+	/** next period counts from the actual invoke, nothing to catch up */
+	public static final int FIXED_DELAY = 1;
+	/** run once however many periods elapsed, stay on the period grid */
+	public static final int SKIP_MISSED = 2;
+	
 	public static abstract class TimerTask {
 		private CoreInt.TimeNode __node__ = null;
 		private CoreTimer __timer__ = null;
@@ -18,6 +29,11 @@ public class CoreTimer {
 		private int __period__ = 0;
 		private int __repeat__ = 0;
 		private int __running__ = 0;
+		private int __slack__ = 0;
+		private int __mode__ = FIXED_RATE;
+		private int __burst__ = 0;
+		private volatile int __cancel__ = -1;     // stamp of the last cancel
+		private final AtomicInteger __stamp__ = new AtomicInteger();
 		
 		public TimerTask() {
 			Runnable runner = new Runnable() {
@@ -37,10 +53,34 @@ public class CoreTimer {
 		 */
 		public abstract void run();
 		
+		/**
+		 * set scheduling mode: FIXED_RATE (default), FIXED_DELAY or 
+		 * SKIP_MISSED
+		 */
+		public final void setMode(int mode) {
+			__mode__ = mode;
+		}
+		
+		/**
+		 * cap the back-to-back runs of FIXED_RATE after a stall, the
+		 * periods over the cap are dropped (counted as skipped).
+		 * @param limit max runs in one update, <= 0 for no limit
+		 */
+		public final void setBurst(int limit) {
+			__burst__ = limit;
+		}
+		
 		/**
 		 * stop task
 		 */
 		public final void stop() {
+			__stamp__.incrementAndGet();
+			detach();
+		}
+		
+		// leave the wheel without bumping the stamp, so a start or 
+		// cancel posted meanwhile by another thread is still applied
+		private void detach() {
 			if (__node__ != null) {
 				__node__.remove();
 			}
@@ -48,6 +88,11 @@ public class CoreTimer {
 			__timer__ = null;
 		}
 		
+		// cancelled, and no start / post / stop has been issued since
+		private boolean cancelled() {
+			return __cancel__ == __stamp__.get();
+		}
+		
 		public void dispose() {
 			if (__node__ != null) {
 				__node__.dispose();
@@ -66,9 +111,115 @@ public class CoreTimer {
 	private long current = 0;
 	private long millisec = 0;
 	private long jiffies = 0;
+	private long clock = 0;
+	private long offset = 0;        // clock millisec minus current
+	private long target = 0;        // clock of run() on the current timeline
 	
 	private CoreInt core = null;
 	
+	// commands from other threads, drained by the owner in run()
+	private static class Command {
+		TimerTask task = null;
+		int stamp = 0;
+		int period = 0;
+		int repeat = 0;
+		int slack = 0;
+		boolean start = false;
+	}
+	
+	/**
+	 * log2 bucketed histogram, bucket i holds values in [2^(i-1), 2^i)
+	 */
+	public static class Histogram {
+		private long[] counts = new long[65];
+		private long total = 0;
+		private long max = 0;
+		
+		public void record(long value) {
+			if (value < 0) value = 0;
+			if (value > max) max = value;
+			counts[64 - Long.numberOfLeadingZeros(value)]++;
+			total++;
+		}
+		
+		/**
+		 * get percentile, rounded up to the bucket boundary
+		 * @param p percentile (0 - 100)
+		 */
+		public long percentile(double p) {
+			if (total == 0) return 0;
+			long need = (long)Math.ceil(total * p / 100.0);
+			if (need < 1) need = 1;
+			long sum = 0;
+			for (int i = 0; i < counts.length; i++) {
+				sum += counts[i];
+				if (sum >= need) {
+					long bound = (i == 0)? 0 : (1L << i) - 1;
+					return (i >= 63 || bound > max)? max : bound;
+				}
+			}
+			return max;
+		}
+		
+		public long count() {
+			return total;
+		}
+		
+		public long max() {
+			return max;
+		}
+		
+		public void reset() {
+			for (int i = 0; i < counts.length; i++) counts[i] = 0;
+			total = 0;
+			max = 0;
+		}
+	}
+	
+	/**
+	 * counters of the wheel, updated by the owner thread
+	 */
+	public static class Metrics {
+		private long ticks = 0;
+		private long fired = 0;
+		private long catchups = 0;
+		private long skipped = 0;
+		private long resyncs = 0;
+		private final Histogram perTick = new Histogram();
+		private final Histogram lag = new Histogram();
+		private final Histogram elapse = new Histogram();
+		
+		/** ticks processed */
+		public long ticks() { return ticks; }
+		/** tasks invoked (catch-up runs included) */
+		public long fired() { return fired; }
+		/** runs of tasks a whole period or more behind the clock */
+		public long catchups() { return catchups; }
+		/** periods not run at all: dropped by SKIP_MISSED or burst cap,
+		 * and jiffies lost in clock resync */
+		public long skipped() { return skipped; }
+		/** times run() resynced after a clock jump over TIME_SKIP_LIMIT */
+		public long resyncs() { return resyncs; }
+		/** timers expired per tick */
+		public Histogram perTick() { return perTick; }
+		/** millisec between the due time and the clock given to run() */
+		public Histogram lag() { return lag; }
+		/** nanosec spent in TimerTask.run(), only with profiling on */
+		public Histogram elapse() { return elapse; }
+		
+		public void reset() {
+			ticks = fired = catchups = skipped = resyncs = 0;
+			perTick.reset();
+			lag.reset();
+			elapse.reset();
+		}
+	}
+	
+	private final Metrics metrics = new Metrics();
+	private boolean profile = false;
+	
+	private final ConcurrentLinkedQueue<Command> mailbox = new ConcurrentLinkedQueue<Command>();
+	
 	public long TIME_SKIP_LIMIT = 300000;  // 300 seconds to skip
 	
 	public CoreTimer(long millisec, int interval) {
@@ -76,6 +227,7 @@ public class CoreTimer {
 		this.millisec = millisec;
 		this.current = 0;
 		this.jiffies = 0;
+		this.offset = millisec;
 		core = new CoreInt(0);
 	}
 	
@@ -96,10 +248,21 @@ public class CoreTimer {
 	public void run(long millisec) {
 		long limit = TIME_SKIP_LIMIT + interval * 4;
 		long diff = millisec - this.millisec;
-		if (diff >= limit) this.millisec = millisec;
-		else if (diff <= -limit) this.millisec = millisec;
+		if (diff >= limit || diff <= -limit) {
+			if (diff > 0 && interval > 0) {
+				metrics.skipped += diff / interval;
+			}
+			metrics.resyncs++;
+			this.millisec = millisec;
+			this.offset = millisec - current;
+		}
+		this.clock = millisec;
+		this.target = millisec - offset;
+		drain();
 		while (millisec >= this.millisec) {
-			core.run(this.jiffies);
+			long count = core.run(this.jiffies);
+			metrics.ticks++;
+			metrics.perTick.record(count);
 			this.jiffies++;			
 			this.current += interval;
 			this.millisec += interval;
@@ -115,14 +278,34 @@ public class CoreTimer {
 	 * @return
 	 */
 	public boolean start(TimerTask task, int period, int repeat) {
+		return start(task, period, repeat, 0);
+	}
+	
+	/**
+	 * schedule task with slack: it may fire up to slack millisec late,
+	 * expiration is rounded up to the coarsest aligned jiffies in the
+	 * range, so lazy timers share tv1 slots and fire in batches.
+	 * @param task - task to schedule
+	 * @param period - period in millisec
+	 * @param repeat - how many times to invoke, <= 0 for infinite
+	 * @param slack - tolerated delay in millisec, 0 for exact
+	 * @return
+	 */
+	public boolean start(TimerTask task, int period, int repeat, int slack) {
+		if (task.__node__ == null) return false;
+		task.__stamp__.incrementAndGet();
+		return schedule(task, period, repeat, slack);
+	}
+	
+	// start without bumping the stamp
+	private boolean schedule(TimerTask task, int period, int repeat, int slack) {
 		if (task.__node__ == null) return false;
 		task.__period__ = period;
 		task.__repeat__ = repeat;
 		task.__slap__ = current + period;
 		task.__timer__ = this;
-		long expires = (period + interval - 1) / interval;
-		if (expires > 0x70000000) expires = 0x70000000;
-		core.add(task.__node__, jiffies + expires);
+		task.__slack__ = (slack < 0)? 0 : slack;
+		core.add(task.__node__, expires(task));
 		task.__running__ = 0;
 		return true;
 	}
@@ -145,40 +328,220 @@ public class CoreTimer {
 		task.stop();
 	}
 	
+	// expiration jiffies of the due time (__slap__), with slack applied
+	// the same way as linux apply_slack(): keep the highest bit in which
+	// expires and expires + slack differ, clear the bits below it.
+	private long expires(TimerTask task) {
+		long ticks = (task.__slap__ - current + interval - 1) / interval;
+		if (ticks < 0) ticks = 0;
+		if (ticks > 0x70000000) ticks = 0x70000000;
+		long expires = jiffies + ticks;
+		long slack = (interval > 0)? task.__slack__ / interval : 0;
+		if (slack > 0) {
+			long limit = expires + slack;
+			long mask = expires ^ limit;
+			if (mask != 0) {
+				mask = Long.highestOneBit(mask) - 1;
+				expires = limit & ~mask;
+			}
+		}
+		return expires;
+	}
+	
 	/**
-	 * update runner
+	 * update runner: run() replays jiffies one by one, periods are 
+	 * counted up to target (the clock of run()), so a stall is seen at
+	 * once by the modes and the burst cap.
 	 * @param task
 	 */
 	private void update(TimerTask task) {
 		boolean stop = false;		
 		int count = 0;
-		while (current >= task.__slap__) {
-			count++;
-			task.__slap__ += task.__period__;
-			if (task.__repeat__ == 1) {
-				stop = true;
-				break;
+		long due = task.__slap__;
+		if (task.cancelled()) {
+			task.detach();
+			return;
+		}
+		if (task.__mode__ == FIXED_DELAY) {
+			if (current >= task.__slap__) {
+				count = 1;
+				task.__slap__ = target + task.__period__;
+				if (task.__repeat__ == 1) stop = true;
+				else if (task.__repeat__ > 1) task.__repeat__--;
+			}
+		}	else {
+			// elapsed periods use up repeats even when they are dropped
+			while (target >= task.__slap__) {
+				count++;
+				task.__slap__ += task.__period__;
+				if (task.__repeat__ == 1) {
+					stop = true;
+					break;
+				}
+				else if (task.__repeat__ > 1) {
+					task.__repeat__--;
+				}
 			}
-			else if (task.__repeat__ > 1) {
-				task.__repeat__--;
+			int limit = (task.__mode__ == SKIP_MISSED)? 1 : task.__burst__;
+			if (limit > 0 && count > limit) {
+				metrics.skipped += count - limit;
+				count = limit;
 			}
 		}
 		if (stop == false) {
-			long expires = (task.__period__ + interval - 1) / interval;
-			if (expires > 0x70000000) expires = 0x70000000;
-			core.add(task.__node__, jiffies + expires);
+			core.add(task.__node__, expires(task));
 		}	else {
-			task.stop();
+			task.detach();
 		}
 		task.__running__ = 1;
+		// late by a whole period or more: the loop is catching up.
+		// due is on the current timeline, shift it to the clock.
+		long lag = clock - (due + offset);
+		if (count > 1 || (lag >= task.__period__ && task.__period__ > 0)) {
+			metrics.catchups += (lag >= task.__period__)? count : count - 1;
+		}
 		for (int i = 0; i < count; i++) {
-			if (task.__node__ != null && task.__running__ == 1) {
-				task.run();
+			if (task.__node__ != null && task.__running__ == 1 && !task.cancelled()) {
+				if (i == 0) {
+					metrics.lag.record(lag);
+				}
+				metrics.fired++;
+				if (profile) {
+					long ts = System.nanoTime();
+					task.run();
+					metrics.elapse.record(System.nanoTime() - ts);
+				}	else {
+					task.run();
+				}
 			}
 		}
 		task.__running__ = 0;
 	}
 	
+	/**
+	 * schedule task from any thread, it will be started by the owner
+	 * thread in the next run()
+	 * @param task - task to schedule
+	 * @param period - period in millisec
+	 * @param repeat - how many times to invoke, <= 0 for infinite
+	 */
+	public void post(TimerTask task, int period, int repeat) {
+		post(task, period, repeat, 0);
+	}
+	
+	/**
+	 * schedule task with slack from any thread
+	 * @param task - task to schedule
+	 * @param period - period in millisec
+	 * @param repeat - how many times to invoke, <= 0 for infinite
+	 * @param slack - tolerated delay in millisec
+	 */
+	public void post(TimerTask task, int period, int repeat, int slack) {
+		Command cmd = new Command();
+		cmd.task = task;
+		cmd.stamp = task.__stamp__.incrementAndGet();
+		cmd.period = period;
+		cmd.repeat = repeat;
+		cmd.slack = slack;
+		cmd.start = true;
+		mailbox.offer(cmd);
+	}
+	
+	/**
+	 * invoke a runnable object in a given time, can be called from 
+	 * any thread.
+	 * @param runnable calling object
+	 * @param millisec after how many millisec to invoke
+	 * @return new TimerTask, which can be passed to cancel()
+	 */
+	public TimerTask post(Runnable runnable, int millisec) {
+		final Runnable r = runnable;
+		TimerTask task = new TimerTask() {
+			private final Runnable runner = r;
+			@Override
+			public void run() { 
+				runner.run();
+			}
+		};
+		post(task, millisec, 1);
+		return task;
+	}
+	
+	/**
+	 * cancel task from any thread: invocations which have not yet passed
+	 * the cancelled check are skipped, but one already running on the
+	 * timer thread (or about to) may still complete. the task is only
+	 * guaranteed to stay quiet after the timer thread drains the mailbox
+	 * in its next run(), where it is removed from the wheel. a start()
+	 * or post() issued later than cancel() still wins.
+	 * @param task task to cancel
+	 */
+	public void cancel(TimerTask task) {
+		Command cmd = new Command();
+		cmd.task = task;
+		cmd.stamp = task.__stamp__.incrementAndGet();
+		cmd.start = false;
+		task.__cancel__ = cmd.stamp;
+		mailbox.offer(cmd);
+	}
+	
+	// commands superseded by a later start/stop/post/cancel are dropped
+	private void drain() {
+		while (true) {
+			Command cmd = mailbox.poll();
+			if (cmd == null) break;
+			TimerTask task = cmd.task;
+			if (task.__stamp__.get() != cmd.stamp) continue;
+			if (cmd.start) {
+				schedule(task, cmd.period, cmd.repeat, cmd.slack);
+			}	else {
+				task.detach();
+			}
+		}
+	}
+	
+	/**
+	 * how long an event loop can sleep before calling run() again
+	 * @param millisec current time, same clock as run()
+	 * @return millisec to wait, 0 for due now, -1 for no timer pending
+	 */
+	public long nextTimeoutMillis(long millisec) {
+		if (mailbox.isEmpty() == false) return 0;
+		long expires = core.nextExpiry();
+		if (expires < 0) return -1;
+		long due = this.millisec + (expires - jiffies) * interval;
+		long timeout = due - millisec;
+		return (timeout < 0)? 0 : timeout;
+	}
+	
+	/**
+	 * @return metrics of this timer
+	 */
+	public Metrics metrics() {
+		return metrics;
+	}
+	
+	/**
+	 * measure callback time into metrics().elapse(), costs two 
+	 * System.nanoTime() per invoke
+	 * @param enable
+	 */
+	public void profile(boolean enable) {
+		profile = enable;
+	}
+	
+	/**
+	 * number of timers queued in each level (tv1 .. tv5), O(n)
+	 * @return array of 5 counters
+	 */
+	public long[] occupancy() {
+		long[] count = new long[5];
+		for (int i = 0; i < 5; i++) {
+			count[i] = core.occupancy(i);
+		}
+		return count;
+	}
+	
 	public long now() {
 		return current;
 	}
@@ -198,7 +561,6 @@ public class CoreTimer {
 				runner.run();
 			}
 		};
-		task.__node__ = new CoreInt.TimeNode(runnable);
 		start(task, millisec, 1);
 		return task;
 	}
@@ -217,7 +579,6 @@ public class CoreTimer {
 				runner.run();
 			}
 		};
-		task.__node__ = new CoreInt.TimeNode(runnable);
 		return task;
 	}
 	
@@ -236,7 +597,6 @@ public class CoreTimer {
 				runner.run();
 			}
 		};
-		task.__node__ = new CoreInt.TimeNode(runnable);
 		start(task, period, -1);
 		return task;
 	}
@@ -264,6 +624,35 @@ public class CoreTimer {
 			timer.run(current);
 		}
 		
+		// lag is measured on the clock given to run(), whatever its base
+		CoreTimer wall = new CoreTimer(1700000000000L, 10);
+		wall.repeatInvoke(new Runnable() {
+			@Override
+			public void run() {
+			}
+		}, 50);
+		for (long t = 0; t < 10000; t += 10) {
+			wall.run(1700000000000L + t);
+		}
+		System.out.println("lag max=" + wall.metrics().lag().max() + 
+				" catchups=" + wall.metrics().catchups());
+		
+		// a 500ms stall of a 1ms task: burst cap runs 3, the rest skipped
+		final int[] runs = new int[1];
+		CoreTimer stall = new CoreTimer(0, 1);
+		CoreTimer.TimerTask fast = stall.create(new Runnable() {
+			@Override
+			public void run() {
+				runs[0]++;
+			}
+		});
+		fast.setBurst(3);
+		stall.start(fast, 1, -1);
+		stall.run(0);
+		stall.run(500);
+		System.out.println("stall: runs=" + runs[0] + " skipped=" + 
+				stall.metrics().skipped());
+		
 		System.out.println("DONE");
 	}
 }
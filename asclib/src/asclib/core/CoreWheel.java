@@ -0,0 +1,518 @@
+//=====================================================================
+//
+// asclib.core.CoreWheel - Timer Wheel without Allocation
+//
+// NOTE:
+// Same 5-level TVR/TVN cascade as CoreInt, but timers are int handles
+// into primitive arrays (struct of arrays), list heads are indices
+// too, nothing is allocated after the arrays have grown.
+//
+//=====================================================================
+package asclib.core;
+
+import asclib.core.CoreKit;
+
+
+/**
+ * Linux kernel timer wheel on primitive arrays
+ *
+ */
+public class CoreWheel {
+	private static final int TVR_SHIFT = 8;
+	private static final int TVN_SHIFT = 6;
+	private static final int TVR_SIZE = (1 << TVR_SHIFT);
+	private static final int TVN_SIZE = (1 << TVN_SHIFT);
+	private static final int TVR_MASK = (TVR_SIZE - 1);
+	private static final int TVN_MASK = (TVN_SIZE - 1);
+
+	private static final int SHIFT_1 = TVR_SHIFT;
+	private static final int SHIFT_2 = TVR_SHIFT + TVN_SHIFT;
+	private static final int SHIFT_3 = TVR_SHIFT + TVN_SHIFT * 2;
+	private static final int SHIFT_4 = TVR_SHIFT + TVN_SHIFT * 3;
+
+	private static final long LIMIT_1 = ((long)1) << (TVR_SHIFT);
+	private static final long LIMIT_2 = ((long)1) << (TVR_SHIFT + TVN_SHIFT);
+	private static final long LIMIT_3 = ((long)1) << (TVR_SHIFT + TVN_SHIFT * 2);
+	private static final long LIMIT_4 = ((long)1) << (TVR_SHIFT + TVN_SHIFT * 3);
+	private static final long LIMIT_5 = ((long)1) << (TVR_SHIFT + TVN_SHIFT * 4);
+	
+	private static final int[] SHIFTS = new int[] {
+			SHIFT_1, SHIFT_2, SHIFT_3, SHIFT_4
+	};
+
+	// list heads: tv1 at [0, 256), tv2..tv5 at [256, 512), then the
+	// two scratch heads used by cascade and update, then the timers.
+	private static final int TV1 = 0;
+	private static final int TV2 = TVR_SIZE;
+	private static final int TV3 = TV2 + TVN_SIZE;
+	private static final int TV4 = TV3 + TVN_SIZE;
+	private static final int TV5 = TV4 + TVN_SIZE;
+	private static final int CASCADE = TV5 + TVN_SIZE;
+	private static final int QUEUED = CASCADE + 1;
+	private static final int HEADS = QUEUED + 1;
+
+	private static final int STATE_FREE = 0;
+	private static final int STATE_IDLE = 1;
+	private static final int STATE_PENDING = 2;
+
+	/**
+	 * expiration callback, handle is the one returned by create()
+	 */
+	public static abstract class Handler {
+		public abstract void OnTimer(int handle, long data);
+	}
+
+	private long[] expires = null;
+	private long[] data = null;
+	private int[] next = null;
+	private int[] prev = null;
+	private byte[] state = null;
+	private long[] bitmap = new long[CASCADE >> 6];    // non-empty heads, cleared lazily
+	private int capacity = 0;
+	private int freelist = -1;
+	private int active = 0;
+	private int pending = 0;
+	private long timer_jiffies = 0;
+	private Handler handler = null;
+
+	/**
+	 * CoreWheel Constructor
+	 * @param jiffies start time jiffies
+	 * @param handler callback of expired timers
+	 * @param capacity initial number of timers
+	 */
+	public CoreWheel(long jiffies, Handler handler, int capacity) {
+		if (capacity < 8) capacity = 8;
+		this.timer_jiffies = jiffies;
+		this.handler = handler;
+		int size = HEADS + capacity;
+		expires = new long[size];
+		data = new long[size];
+		next = new int[size];
+		prev = new int[size];
+		state = new byte[size];
+		for (int i = 0; i < HEADS; i++) {
+			next[i] = prev[i] = i;
+		}
+		grow(HEADS, size);
+	}
+
+	public CoreWheel(long jiffies, Handler handler) {
+		this(jiffies, handler, 1024);
+	}
+
+	// put [from, to) into the free list
+	private void grow(int from, int to) {
+		for (int i = to - 1; i >= from; i--) {
+			state[i] = STATE_FREE;
+			next[i] = freelist;
+			prev[i] = -1;
+			freelist = i;
+		}
+		capacity = to - HEADS;
+	}
+
+	private void reserve() {
+		int size = HEADS + capacity;
+		int newsize = HEADS + capacity * 2;
+		expires = CoreKit.realloc(expires, newsize);
+		data = CoreKit.realloc(data, newsize);
+		next = CoreKit.realloc(next, newsize);
+		prev = CoreKit.realloc(prev, newsize);
+		byte[] s = new byte[newsize];
+		System.arraycopy(state, 0, s, 0, size);
+		state = s;
+		grow(size, newsize);
+	}
+
+	private void unlink(int node) {
+		int n = next[node];
+		int p = prev[node];
+		next[p] = n;
+		prev[n] = p;
+		next[node] = prev[node] = node;
+	}
+
+	private void link(int head, int node) {
+		int p = prev[head];
+		next[node] = head;
+		prev[node] = p;
+		next[p] = node;
+		prev[head] = node;
+	}
+
+	// move all nodes of src to the empty list dst
+	private void splice(int dst, int src) {
+		int first = next[src];
+		if (first == src) {
+			next[dst] = prev[dst] = dst;
+			return;
+		}
+		int last = prev[src];
+		next[dst] = first;
+		prev[first] = dst;
+		prev[dst] = last;
+		next[last] = dst;
+		next[src] = prev[src] = src;
+	}
+
+	private int check(int handle) {
+		int node = handle + HEADS;
+		if (handle < 0 || node >= HEADS + capacity) return -1;
+		if (state[node] == STATE_FREE) return -1;
+		return node;
+	}
+
+	private boolean internalAddTimer(int node) {
+		long expire = expires[node];
+		long idx = expire - timer_jiffies;
+		int head = 0;
+		if (idx >= 0) {
+			if (idx < LIMIT_1) {
+				head = TV1 + (int)(expire & TVR_MASK);
+			}
+			else if (idx < LIMIT_2) {
+				head = TV2 + (int)((expire >>> SHIFT_1) & TVN_MASK);
+			}
+			else if (idx < LIMIT_3) {
+				head = TV3 + (int)((expire >>> SHIFT_2) & TVN_MASK);
+			}
+			else if (idx < LIMIT_4) {
+				head = TV4 + (int)((expire >>> SHIFT_3) & TVN_MASK);
+			}
+			else if (idx < LIMIT_5) {
+				head = TV5 + (int)((expire >>> SHIFT_4) & TVN_MASK);
+			}
+			else {
+				return false;
+			}
+		}
+		else {
+			head = TV1 + (int)(timer_jiffies & TVR_MASK);
+		}
+		link(head, node);
+		bitmap[head >> 6] |= 1L << (head & 63);
+		return true;
+	}
+
+	/**
+	 * allocate a timer handle
+	 * @param value user data passed to Handler.OnTimer
+	 * @return handle (>= 0)
+	 */
+	public int create(long value) {
+		if (freelist < 0) {
+			reserve();
+		}
+		int node = freelist;
+		freelist = next[node];
+		next[node] = prev[node] = node;
+		state[node] = STATE_IDLE;
+		expires[node] = 0;
+		data[node] = value;
+		active++;
+		return node - HEADS;
+	}
+
+	/**
+	 * stop the timer and release the handle, the handle must not be
+	 * used after it has been freed.
+	 * @param handle
+	 * @return false if the handle is invalid
+	 */
+	public boolean free(int handle) {
+		int node = check(handle);
+		if (node < 0) return false;
+		cancel(handle);
+		state[node] = STATE_FREE;
+		prev[node] = -1;
+		next[node] = freelist;
+		freelist = node;
+		active--;
+		return true;
+	}
+
+	/**
+	 * schedule the timer at the given jiffies, reschedule if pending
+	 * @param handle timer handle
+	 * @param jiffies expiration time in jiffies
+	 * @return true for success, false for error
+	 */
+	public boolean start(int handle, long jiffies) {
+		int node = check(handle);
+		if (node < 0) return false;
+		if (state[node] == STATE_PENDING) {
+			unlink(node);
+			pending--;
+		}
+		state[node] = STATE_IDLE;
+		expires[node] = jiffies;
+		if (internalAddTimer(node) == false) {
+			return false;
+		}
+		state[node] = STATE_PENDING;
+		pending++;
+		return true;
+	}
+
+	/**
+	 * cancel a pending timer
+	 * @param handle timer handle
+	 * @return true if it was pending
+	 */
+	public boolean cancel(int handle) {
+		int node = check(handle);
+		if (node < 0) return false;
+		if (state[node] != STATE_PENDING) return false;
+		unlink(node);
+		state[node] = STATE_IDLE;
+		pending--;
+		return true;
+	}
+
+	public boolean pending(int handle) {
+		int node = check(handle);
+		return (node >= 0 && state[node] == STATE_PENDING);
+	}
+
+	public long expires(int handle) {
+		int node = check(handle);
+		return (node >= 0)? expires[node] : -1;
+	}
+
+	public long data(int handle) {
+		int node = check(handle);
+		return (node >= 0)? data[node] : 0;
+	}
+
+	public void data(int handle, long value) {
+		int node = check(handle);
+		if (node >= 0) data[node] = value;
+	}
+
+	/**
+	 * @return number of allocated handles
+	 */
+	public int size() {
+		return active;
+	}
+
+	/**
+	 * @return number of scheduled timers
+	 */
+	public int pending() {
+		return pending;
+	}
+
+	public long jiffies() {
+		return timer_jiffies;
+	}
+
+	/**
+	 * cancel all the timers, handles stay allocated
+	 */
+	public void reset() {
+		for (int head = 0; head < CASCADE; head++) {
+			while (next[head] != head) {
+				int node = next[head];
+				unlink(node);
+				state[node] = STATE_IDLE;
+			}
+		}
+		for (int i = 0; i < bitmap.length; i++) {
+			bitmap[i] = 0;
+		}
+		pending = 0;
+	}
+	
+	// offset of the first non-empty head of level [base, base + size)
+	// counting from start, wrapping around, -1 for none. stale bits 
+	// found on the way are cleared.
+	private int search(int base, int size, int start) {
+		int mask = size - 1;
+		int j = 0;
+		while (j < size) {
+			int h = base + ((start + j) & mask);
+			long word = bitmap[h >> 6] >>> (h & 63);
+			if (word == 0) {
+				j += 64 - (h & 63);
+				continue;
+			}
+			j += Long.numberOfTrailingZeros(word);
+			if (j >= size) break;
+			h = base + ((start + j) & mask);
+			if (next[h] != h) {
+				return j;
+			}
+			bitmap[h >> 6] &= ~(1L << (h & 63));
+			j++;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Earliest jiffies that needs run(): exact for timers in tv1, for 
+	 * the outer levels it is the time their slot cascades down, which 
+	 * is never later than the real expiration.
+	 * @return jiffies, -1 for no timer pending
+	 */
+	public long nextExpiry() {
+		if (pending == 0) return -1;
+		long jiffies = timer_jiffies;
+		long next = -1;
+		int j = search(TV1, TVR_SIZE, (int)(jiffies & TVR_MASK));
+		if (j >= 0) {
+			next = jiffies + j;
+		}
+		for (int n = 0; n < 4; n++) {
+			int shift = SHIFTS[n];
+			long block = jiffies >>> shift;
+			if ((jiffies & ((1L << shift) - 1)) != 0) {
+				block++;    // slot of the current block is cascaded
+			}
+			j = search(TV2 + n * TVN_SIZE, TVN_SIZE, (int)(block & TVN_MASK));
+			if (j >= 0) {
+				long cascade = (block + j) << shift;
+				if (next < 0 || cascade < next) {
+					next = cascade;
+				}
+			}
+		}
+		return next;
+	}
+
+	private void cascade(int head) {
+		splice(CASCADE, head);
+		while (next[CASCADE] != CASCADE) {
+			int node = next[CASCADE];
+			unlink(node);
+			internalAddTimer(node);
+		}
+	}
+
+	/**
+	 * Run timers, if a handler throws, the exception propagates and the
+	 * timers not invoked yet are kept to run in the next jiffy.
+	 * @param jiffies current time jiffies
+	 * @return how many timer invoked
+	 */
+	public long run(long jiffies) {
+		long count = 0;
+		while (timer_jiffies <= jiffies) {
+			int index = (int)(timer_jiffies & TVR_MASK);
+			if (index == 0) {
+				int i = (int)((timer_jiffies >>> SHIFT_1) & TVN_MASK);
+				cascade(TV2 + i);
+				if (i == 0) {
+					i = (int)((timer_jiffies >>> SHIFT_2) & TVN_MASK);
+					cascade(TV3 + i);
+					if (i == 0) {
+						i = (int)((timer_jiffies >>> SHIFT_3) & TVN_MASK);
+						cascade(TV4 + i);
+						if (i == 0) {
+							i = (int)((timer_jiffies >>> SHIFT_4) & TVN_MASK);
+							cascade(TV5 + i);
+						}
+					}
+				}
+			}
+			timer_jiffies++;
+			splice(QUEUED, TV1 + index);
+			// callbacks may start or cancel any timer, including the
+			// ones still in QUEUED, so pop them one by one.
+			try {
+				while (next[QUEUED] != QUEUED) {
+					int node = next[QUEUED];
+					unlink(node);
+					state[node] = STATE_IDLE;
+					pending--;
+					if (handler != null) {
+						handler.OnTimer(node - HEADS, data[node]);
+					}
+					count++;
+				}
+			}	finally {
+				if (next[QUEUED] != QUEUED) {
+					requeue();
+				}
+			}
+		}
+		return count;
+	}
+	
+	// a handler has thrown: the rest of QUEUED goes in front of the
+	// slot of the next jiffy, so they run first in the next run().
+	private void requeue() {
+		int head = TV1 + (int)(timer_jiffies & TVR_MASK);
+		while (next[head] != head) {
+			int node = next[head];
+			unlink(node);
+			link(QUEUED, node);
+		}
+		splice(head, QUEUED);
+		bitmap[head >> 6] |= 1L << (head & 63);
+	}
+
+	/**
+	 * testing case
+	 * @param argv
+	 */
+	public static void main(String[] argv) {
+		final long[] fired = new long[2];
+		final int N = 1000000;
+		Handler handler = new Handler() {
+			@Override
+			public void OnTimer(int handle, long data) {
+				fired[0]++;
+				fired[1] += data;
+			}
+		};
+		CoreWheel wheel = new CoreWheel(0, handler, N);
+		int[] handles = new int[N];
+		for (int i = 0; i < N; i++) {
+			handles[i] = wheel.create(i & 7);
+		}
+		long seed = 1;
+		for (int round = 0; round < 5; round++) {
+			long ts = System.nanoTime();
+			long now = wheel.jiffies();
+			long expect = 0;
+			for (int i = 0; i < N; i++) {
+				seed = seed * 6364136223846793005L + 1442695040888963407L;
+				wheel.start(handles[i], now + 1 + ((seed >>> 33) % 100000));
+			}
+			for (int i = 0; i < N; i += 2) {
+				wheel.cancel(handles[i]);
+			}
+			for (int i = 1; i < N; i += 2) {
+				expect += i & 7;
+			}
+			fired[0] = fired[1] = 0;
+			wheel.run(now + 100000);
+			long t = (System.nanoTime() - ts) / 1000000;
+			System.out.printf("round %d: fired=%d sum=%d/%d pending=%d time=%dms\n",
+					round, fired[0], fired[1], expect, wheel.pending(), t);
+		}
+		// a throwing handler must not lose the other timers of its slot
+		final StringBuilder order = new StringBuilder();
+		CoreWheel w = new CoreWheel(0, new Handler() {
+			@Override
+			public void OnTimer(int handle, long data) {
+				order.append(data);
+				if (data == 0) throw new IllegalStateException("timer " + handle);
+			}
+		}, 8);
+		for (int i = 0; i < 5; i++) {
+			w.start(w.create(i), 10);
+		}
+		try {
+			w.run(10);
+		}	catch (IllegalStateException e) {
+			System.out.println("thrown: " + e.getMessage() + " pending=" + w.pending());
+		}
+		System.out.println("next expiry=" + w.nextExpiry() + " (expect 11)");
+		w.run(11);
+		System.out.println("order=" + order + " pending=" + w.pending());
+		System.out.println("END");
+	}
+}
@@ -1,6 +1,11 @@
 package asclib.net;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
 import asclib.core.CoreNet;
+import asclib.core.CoreReader;
 import asclib.core.CoreRedis;
 import asclib.core.CoreRedis.RedisError;
 
@@ -38,11 +43,281 @@ public class AsyncRedis {
 		public abstract void OnDisconnect();
 	}
 	
+	/**
+	 * Callback of a single request, replies are matched to requests in
+	 * the order they are sent (pipelining)
+	 */
+	public static abstract class Reply {
+		/**
+		 * invoked when response of this request received
+		 * @param response response from redis
+		 */
+		public abstract void OnReply(Object response);
+		
+		/**
+		 * invoked when redis returns an error for this request, or the
+		 * connection is closed before the response arrives
+		 * @param error error from redis or "connection closed"
+		 */
+		public abstract void OnError(CoreRedis.RedisError error);
+	}
+	
+	/**
+	 * Reply which reads the response from a flat frame without building
+	 * objects, requires flat(true). The frame (and any view of it) is only
+	 * valid inside OnFrame, redis errors are frames of type '-'.
+	 */
+	public static abstract class FrameReply extends Reply {
+		/**
+		 * invoked when response of this request received
+		 * @param frame response, node 0 is the reply
+		 */
+		public abstract void OnFrame(CoreRedis.Frame frame);
+		
+		/**
+		 * invoked instead of OnFrame if flat mode is off
+		 */
+		@Override
+		public void OnReply(Object response) {
+		}
+	}
+	
+	/**
+	 * Reply which receives large bulk strings chunk by chunk, requires
+	 * stream(threshold, ...). Streamed strings are null in OnReply.
+	 */
+	public static abstract class StreamReply extends Reply {
+		/**
+		 * invoked when a large bulk string starts
+		 * @param size total size in bytes
+		 */
+		public abstract void OnBegin(int size);
+		
+		/**
+		 * invoked for every chunk, data is only valid inside the call
+		 */
+		public abstract void OnData(byte[] data, int offset, int length);
+		
+		/**
+		 * invoked when the bulk string is finished
+		 */
+		public abstract void OnEnd();
+	}
+	
+	/**
+	 * Handler of a subscribed channel or pattern, see subscribe()
+	 */
+	public static abstract class Subscriber {
+		/**
+		 * invoked when a message is published, buffers are only valid 
+		 * inside the call
+		 * @param channel buffer of channel name
+		 * @param choff offset of channel name
+		 * @param chlen length of channel name
+		 * @param data buffer of payload
+		 * @param offset offset of payload
+		 * @param length length of payload
+		 */
+		public abstract void OnMessage(byte[] channel, int choff, int chlen, 
+				byte[] data, int offset, int length);
+	}
+	
+	// open addressing hash table: channel bytes -> subscriber
+	private static class Channels {
+		private byte[][] keys = new byte[16][];
+		private int[] hashes = new int[16];
+		private Subscriber[] values = new Subscriber[16];
+		private int size = 0;
+		
+		private static int hash(byte[] b, int off, int len) {
+			int h = 0x811c9dc5;
+			for (int i = off, end = off + len; i < end; i++) {
+				h = (h ^ (b[i] & 0xff)) * 0x01000193;
+			}
+			return h ^ (h >>> 16);
+		}
+		
+		private int slot(byte[] b, int off, int len, int h) {
+			int mask = keys.length - 1;
+			for (int i = h & mask; ; i = (i + 1) & mask) {
+				byte[] key = keys[i];
+				if (key == null) return i;
+				if (hashes[i] == h && key.length == len) {
+					int k = 0;
+					while (k < len && key[k] == b[off + k]) k++;
+					if (k == len) return i;
+				}
+			}
+		}
+		
+		Subscriber find(byte[] b, int off, int len) {
+			if (size == 0 || len < 0) return null;
+			return values[slot(b, off, len, hash(b, off, len))];
+		}
+		
+		void put(byte[] key, Subscriber value) {
+			if ((size + 1) * 2 > keys.length) {
+				byte[][] k = keys;
+				Subscriber[] v = values;
+				keys = new byte[k.length * 2][];
+				hashes = new int[k.length * 2];
+				values = new Subscriber[k.length * 2];
+				size = 0;
+				for (int i = 0; i < k.length; i++) {
+					if (k[i] != null) put(k[i], v[i]);
+				}
+			}
+			int h = hash(key, 0, key.length);
+			int i = slot(key, 0, key.length, h);
+			if (keys[i] == null) size++;
+			keys[i] = key;
+			hashes[i] = h;
+			values[i] = value;
+		}
+		
+		// backward shift deletion: move the following entries of the
+		// probe chain into the hole if their home slot allows it
+		boolean remove(byte[] key) {
+			int i = slot(key, 0, key.length, hash(key, 0, key.length));
+			if (keys[i] == null) return false;
+			int mask = keys.length - 1;
+			for (int j = (i + 1) & mask; keys[j] != null; j = (j + 1) & mask) {
+				int home = hashes[j] & mask;
+				if (((j - home) & mask) >= ((j - i) & mask)) {
+					keys[i] = keys[j];
+					hashes[i] = hashes[j];
+					values[i] = values[j];
+					i = j;
+				}
+			}
+			keys[i] = null;
+			values[i] = null;
+			size--;
+			return true;
+		}
+		
+		int size() {
+			return size;
+		}
+		
+		// write all keys as arguments
+		void encode(CoreRedis.Encoder encoder) {
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] != null) encoder.bulk(keys[i]);
+			}
+		}
+	}
+	
+	// forward streamed bulk strings to the reply being received
+	private class Streamer extends CoreRedis.BulkStream {
+		@Override
+		public void OnBegin(int size) {
+			// replies completed before this bulk in the same read own
+			// the first entries of _pending, hand them out first so the
+			// head is the reply being received. pushes take no entry.
+			dispatch();
+			Reply head = _pending.peekFirst();
+			_streaming = (head instanceof StreamReply)? head : _stream;
+			if (_streaming instanceof StreamReply) {
+				((StreamReply)_streaming).OnBegin(size);
+			}
+			else if (_streaming != null) {
+				((CoreRedis.BulkStream)_streaming).OnBegin(size);
+			}
+		}
+		
+		@Override
+		public void OnData(byte[] data, int offset, int length) {
+			if (_streaming instanceof StreamReply) {
+				((StreamReply)_streaming).OnData(data, offset, length);
+			}
+			else if (_streaming != null) {
+				((CoreRedis.BulkStream)_streaming).OnData(data, offset, length);
+			}
+		}
+		
+		@Override
+		public void OnEnd() {
+			if (_streaming instanceof StreamReply) {
+				((StreamReply)_streaming).OnEnd();
+			}
+			else if (_streaming != null) {
+				((CoreRedis.BulkStream)_streaming).OnEnd();
+			}
+			_streaming = null;
+		}
+	}
+	
+	// placeholder of requests whose response goes to the global callback
+	private static final Reply GLOBAL = new Reply() {
+		public void OnReply(Object response) {}
+		public void OnError(RedisError error) {}
+	};
+	
+	// reply of a merged MGET/MSET, split to the original requests
+	private class Split extends Reply {
+		private int kind;
+		private Reply[] replies;
+		
+		Split(int kind, Reply[] replies) {
+			this.kind = kind;
+			this.replies = replies;
+		}
+		
+		@Override
+		public void OnReply(Object response) {
+			if (kind == CMD_GET && response instanceof List) {
+				List<?> list = (List<?>)response;
+				for (int i = 0; i < replies.length; i++) {
+					deliver(replies[i], (i < list.size())? list.get(i) : null);
+				}
+			}
+			else {
+				for (int i = 0; i < replies.length; i++) {
+					deliver(replies[i], response);
+				}
+			}
+		}
+		
+		@Override
+		public void OnError(RedisError error) {
+			OnReply(error);
+		}
+		
+		// flat mode: each FrameReply gets its own element as node 0
+		void OnFrame(CoreRedis.Frame frame) {
+			boolean each = (kind == CMD_GET && frame.arrayLength(0) >= 0);
+			for (int i = 0; i < replies.length; i++) {
+				int node = 0;
+				if (each) {
+					node = (i < frame.arrayLength(0))? frame.child(0, i) : -1;
+				}
+				Reply reply = replies[i];
+				if (node < 0) {
+					deliver(reply, null);
+				}
+				else if (reply instanceof FrameReply) {
+					((FrameReply)reply).OnFrame((node == 0)? frame : frame.copy(node, _piece));
+				}
+				else {
+					deliver(reply, frame.translate(node, _convert_string));
+				}
+			}
+		}
+	}
+	
+	private static final int CMD_OTHER = 0;
+	private static final int CMD_GET = 1;
+	private static final int CMD_SET = 2;
+	private static final int CMD_MULTI = 3;
+	private static final int CMD_EXEC = 4;
+	
 	private Callback _callback = null;
 	private CoreRedis _redis = new CoreRedis();
+	private CoreRedis.Encoder _encoder = new CoreRedis.Encoder();
 	private CoreNet _net = new CoreNet();
 	private int _state = CoreNet.STATE_CLOSED;
-	private byte[] _buffer = new byte[8];
+	private byte[] _buffer = new byte[0x10000];
 	
 	private boolean _convert_string = true;
 	
@@ -52,6 +327,30 @@ public class AsyncRedis {
 	
 	private String _host = "";
 	private int _port = -1;
+	private int _limit = -1;
+	
+	private ArrayDeque<Reply> _pending = new ArrayDeque<Reply>();
+	
+	private boolean _batch = false;
+	private boolean _coalesce = false;
+	private int _batch_size = 0x10000;
+	private int _batch_time = 0;
+	private long _batch_ts = -1;
+	private boolean _multi = false;
+	private CoreRedis.Encoder _output = new CoreRedis.Encoder(0x10000);
+	private CoreRedis.Encoder _run = new CoreRedis.Encoder();
+	private int _run_kind = CMD_OTHER;
+	private ArrayList<Reply> _run_replies = new ArrayList<Reply>();
+	private int _args = 0;
+	private long _merged = 0;
+	private CoreRedis.Frame _piece = new CoreRedis.Frame();
+	
+	private CoreRedis.BulkStream _stream = null;
+	private Object _streaming = null;
+	
+	private Channels _channels = new Channels();
+	private Channels _patterns = new Channels();
+	private boolean _pubsub = false;
 	
 	public void destroy() {
 		if (_redis != null) _redis.destroy();
@@ -73,6 +372,8 @@ public class AsyncRedis {
 		if (_net != null) {
 			_net.close(0);
 		}
+		abort("connection closed");
+		_pubsub = false;
 		if (_state != CoreNet.STATE_CLOSED) {
 			_state = CoreNet.STATE_CLOSED;
 			if (_callback != null)
@@ -81,6 +382,26 @@ public class AsyncRedis {
 		_reconnect_time = -1;
 	}	
 	
+	// fail all the pending requests (including the batch not sent)
+	private void abort(String reason) {
+		_output.reset();
+		_run.reset();
+		_batch_ts = -1;
+		_multi = false;
+		_streaming = null;
+		if (_pending.isEmpty() && _run_replies.isEmpty()) return;
+		ArrayDeque<Reply> pending = _pending;
+		_pending = new ArrayDeque<Reply>();
+		pending.addAll(_run_replies);
+		_run_replies.clear();
+		_run_kind = CMD_OTHER;
+		for (Reply reply : pending) {
+			if (reply != GLOBAL) {
+				reply.OnError(new CoreRedis.RedisError(reason));
+			}
+		}
+	}
+	
 	/**
 	 * connect to remote redis server
 	 * @param ip redis address
@@ -95,6 +416,7 @@ public class AsyncRedis {
 		_reconnect_time = (reconnect > 0)? reconnect * 1000 : -1;		
 		_net.timeout(_connect_timeout);
 		_net.connect(ip, port, CoreNet.Header.RAWDATA);
+		if (_limit > 0) _net.limit(_limit);
 		_state = _net.state();
 		_host = ip;
 		_port = port;
@@ -113,6 +435,9 @@ public class AsyncRedis {
 	public void update() {
 		if (_net == null || _redis == null) return;
 		long current = System.currentTimeMillis();
+		if (_batch_ts >= 0 && current - _batch_ts >= _batch_time) {
+			commitBatch();
+		}
 		_net.update();
 		int newstate = _net.state();
 		int oldstate = _state;
@@ -121,6 +446,7 @@ public class AsyncRedis {
 			if (_callback != null)
 				_callback.OnConnected();
 			_reconnect_ts = -1;
+			resubscribe();
 		}
 		
 		// receive network message and pass to CoreRedis
@@ -143,23 +469,7 @@ public class AsyncRedis {
 			}
 		}
 		
-		// poll message from CoreRedis and dispatch
-		while (true) {
-			CoreRedis.Element element = _redis.poll();
-			if (element == null) break;
-			Object o = _redis.translate(element, _convert_string);
-			if (_callback != null) {
-				if (o == null) {
-					_callback.OnResponse(null);
-				}
-				else if (o instanceof CoreRedis.RedisError) {
-					_callback.OnError((CoreRedis.RedisError)o);
-				}	
-				else {
-					_callback.OnResponse(o);
-				}
-			}
-		}
+		dispatch();
 		
 		// update state
 		oldstate = _state;
@@ -169,6 +479,9 @@ public class AsyncRedis {
 		oldstate = _state;
 		if (oldstate != CoreNet.STATE_CLOSED && newstate == CoreNet.STATE_CLOSED) {
 			_state = CoreNet.STATE_CLOSED;
+			_redis.clear();
+			_pubsub = false;
+			abort("connection closed");
 			if (_callback != null) 
 				_callback.OnDisconnect();
 		}
@@ -185,16 +498,466 @@ public class AsyncRedis {
 		}
 	}
 	
+	// hand the received replies to their requests
+	private void dispatch() {
+		// poll frames in flat mode
+		while (_redis != null && _redis.flat()) {
+			CoreRedis.Frame frame = _redis.pollFrame();
+			if (frame == null) break;
+			if (_pubsub && pushed(frame)) {
+				_redis.recycle(frame);
+				continue;
+			}
+			Reply reply = _pending.pollFirst();
+			if (reply instanceof FrameReply) {
+				((FrameReply)reply).OnFrame(frame);
+			}
+			else if (reply instanceof Split) {
+				((Split)reply).OnFrame(frame);
+			}	else {
+				deliver(reply, frame.translate(0, _convert_string));
+			}
+			_redis.recycle(frame);
+		}
+		
+		// poll message from CoreRedis and dispatch
+		while (_redis != null) {
+			CoreRedis.Element element = _redis.poll();
+			if (element == null) break;
+			if (_pubsub && pushed(element)) continue;
+			Object o = _redis.translate(element, _convert_string);
+			deliver(_pending.pollFirst(), o);
+		}
+	}
+	
+	// pass response to the reply of request, or global callback
+	private void deliver(Reply reply, Object o) {
+		if (reply != null && reply != GLOBAL) {
+			if (o instanceof CoreRedis.RedisError) {
+				reply.OnError((CoreRedis.RedisError)o);
+			}
+			else {
+				reply.OnReply(o);
+			}
+		}
+		else if (_callback != null) {
+			if (o == null) {
+				_callback.OnResponse(null);
+			}
+			else if (o instanceof CoreRedis.RedisError) {
+				_callback.OnError((CoreRedis.RedisError)o);
+			}	
+			else {
+				_callback.OnResponse(o);
+			}
+		}
+	}
+	
 	// send packet to redis server
 	public void send(Object o) {
-		if (_redis == null) return;
-		byte[] b = _redis.serialize(o);
-		_net.send(b, 0, b.length, 0);
+		send(null, o);
+	}
+	
+	/**
+	 * send packet to redis server, response will be passed to reply
+	 * @param reply callback of this request, null to use global callback
+	 * @param o request
+	 * @return true for success, false if connection is closed
+	 */
+	public boolean send(Reply reply, Object o) {
+		if (_redis == null) return false;
+		_encoder.reset();
+		_encoder.encode(o);
+		return post(reply);
+	}
+	
+	// send the encoder and queue the reply
+	private boolean post(Reply reply) {
+		if (reply == null) reply = GLOBAL;
+		if (_batch && _net.state() != CoreNet.STATE_CLOSED) {
+			queue(reply);
+			return true;
+		}
+		boolean hr = _net.send(_encoder.array(), 0, _encoder.size(), 0);
+		_encoder.reset();
+		if (hr == false) {
+			if (reply != GLOBAL) {
+				reply.OnError(new CoreRedis.RedisError("connection closed"));
+			}
+			return false;
+		}
+		_pending.addLast(reply);
+		return true;
+	}
+	
+	/**
+	 * Start a command without allocation, eg:
+	 * begin(3).bulk("SET").bulk(key).bulk(value); commit();
+	 * @param argc how many arguments (including command name)
+	 * @return encoder to write arguments
+	 */
+	public CoreRedis.Encoder begin(int argc) {
+		_encoder.reset();
+		return _encoder.array(argc);
+	}
+	
+	/**
+	 * send the command started by begin()
+	 */
+	public void commit() {
+		commit(null);
+	}
+	
+	/**
+	 * send the command started by begin()
+	 * @param reply callback of this request, null to use global callback
+	 * @return true for success, false if connection is closed
+	 */
+	public boolean commit(Reply reply) {
+		if (_redis == null) return false;
+		return post(reply);
 	}
 	
 	// send request in vector
 	public void request(Object ... args) {
-		send(args);
+		send(null, args);
+	}
+	
+	/**
+	 * send request in vector, eg: request(reply, "GET", key).
+	 * requests can be sent continuously without waiting (pipelining),
+	 * each reply will be invoked in order when its response arrives.
+	 * @param reply callback of this request, null to use global callback
+	 * @param args command and arguments
+	 * @return true for success, false if connection is closed
+	 */
+	public boolean request(Reply reply, Object ... args) {
+		return send(reply, args);
+	}
+	
+	private static boolean match(byte[] b, int off, int len, String name) {
+		if (len != name.length()) return false;
+		for (int i = 0; i < len; i++) {
+			int ch = b[off + i];
+			if (ch >= 'a' && ch <= 'z') ch -= 'a' - 'A';
+			if (ch != name.charAt(i)) return false;
+		}
+		return true;
+	}
+	
+	// find out the command in encoder, _args will point to the first argument
+	private int classify(byte[] b, int size) {
+		int p = 0, argc = 0, len = 0;
+		if (size < 4 || b[p++] != '*') return CMD_OTHER;
+		for (; p < size && b[p] >= '0' && b[p] <= '9'; p++) argc = argc * 10 + b[p] - '0';
+		if (p + 3 > size || b[p] != '\r' || b[p + 2] != '$') return CMD_OTHER;
+		for (p += 3; p < size && b[p] >= '0' && b[p] <= '9'; p++) len = len * 10 + b[p] - '0';
+		if (p + 2 + len > size) return CMD_OTHER;
+		p += 2;
+		_args = p + len + 2;
+		if (argc == 2 && match(b, p, len, "GET")) return CMD_GET;
+		if (argc == 3 && match(b, p, len, "SET")) return CMD_SET;
+		if (argc == 1 && match(b, p, len, "MULTI")) return CMD_MULTI;
+		if (argc == 1 && match(b, p, len, "EXEC")) return CMD_EXEC;
+		if (argc == 1 && match(b, p, len, "DISCARD")) return CMD_EXEC;
+		return CMD_OTHER;
+	}
+	
+	// move the command in encoder to the batch
+	private void queue(Reply reply) {
+		byte[] b = _encoder.array();
+		int size = _encoder.size();
+		int kind = classify(b, size);
+		if (kind == CMD_MULTI) _multi = true;
+		else if (kind == CMD_EXEC) _multi = false;
+		if (!_coalesce || _multi || kind >= CMD_MULTI) kind = CMD_OTHER;
+		// a streamed bulk must go to its own reply, never into a Split
+		if (reply instanceof StreamReply) kind = CMD_OTHER;
+		if (kind != _run_kind) {
+			emit();
+		}
+		if (kind == CMD_OTHER) {
+			_output.raw(b, 0, size);
+			_pending.addLast(reply);
+		}
+		else {
+			_run.raw(b, _args, size - _args);
+			_run_replies.add(reply);
+			_run_kind = kind;
+		}
+		_encoder.reset();
+		if (_batch_ts < 0) _batch_ts = System.currentTimeMillis();
+		if (_output.size() + _run.size() >= _batch_size) {
+			commitBatch();
+		}
+	}
+	
+	// write consecutive GETs as MGET, SETs as MSET
+	private void emit() {
+		int count = _run_replies.size();
+		if (count == 0) return;
+		boolean get = (_run_kind == CMD_GET);
+		if (count == 1) {
+			_output.array(get? 2 : 3).bulk(get? "GET" : "SET");
+			_pending.addLast(_run_replies.get(0));
+		}
+		else {
+			_output.array(get? count + 1 : count * 2 + 1).bulk(get? "MGET" : "MSET");
+			_pending.addLast(new Split(_run_kind, _run_replies.toArray(new Reply[count])));
+			_merged += count - 1;
+		}
+		_output.raw(_run.array(), 0, _run.size());
+		_run.reset();
+		_run_replies.clear();
+		_run_kind = CMD_OTHER;
+	}
+	
+	// send the batch in one write
+	private void commitBatch() {
+		emit();
+		_batch_ts = -1;
+		if (_output.size() == 0) return;
+		boolean hr = _net.send(_output.array(), 0, _output.size(), 0);
+		_output.reset();
+		if (hr == false) {
+			abort("connection closed");
+		}
+	}
+	
+	/**
+	 * Enable or disable batching. Commands are gathered and sent in one
+	 * write when the window expires (checked in update) or the batch is
+	 * large enough. Commands are sent unchanged, see coalesce().
+	 * @param enable true to enable
+	 * @param size send the batch when it exceeds this size (in bytes)
+	 * @param millisec send the batch after this time, 0 for every update
+	 */
+	public void batch(boolean enable, int size, int millisec) {
+		if (!enable) commitBatch();
+		_batch = enable;
+		_batch_size = (size > 0)? size : 0x10000;
+		_batch_time = (millisec > 0)? millisec : 0;
+	}
+	
+	public void batch(boolean enable) {
+		batch(enable, 0x10000, 0);
+	}
+	
+	/**
+	 * Opt-in for batching: consecutive "GET key" are rewritten into one
+	 * MGET and consecutive "SET key value" into one MSET (except inside
+	 * MULTI), their responses are split back to the original replies.
+	 * NOTE: this changes error semantics. MGET returns nil for a key
+	 * holding a non-string value, so a GET which would fail with
+	 * WRONGTYPE gets null instead, and an error of the merged command
+	 * fails every request in it. Don't enable it on a redis cluster node
+	 * either, keys of a merged MGET/MSET may belong to different slots.
+	 * @param enable true to enable, takes effect for later commands
+	 */
+	public void coalesce(boolean enable) {
+		emit();
+		_coalesce = enable;
+	}
+	
+	/**
+	 * get how many commands have been merged into MGET/MSET
+	 * @return command count
+	 */
+	public long merged() {
+		return _merged;
+	}
+	
+	// handle pushed message of pub/sub in flat mode
+	private boolean pushed(CoreRedis.Frame frame) {
+		int count = frame.arrayLength(0);
+		if (count < 3) return false;
+		int kind = frame.child(0, 0);
+		if (frame.type(kind) != '$' && frame.type(kind) != '+') return false;
+		byte[] b = frame.array();
+		int off = frame.offset(kind);
+		int len = frame.length(kind);
+		if (count == 3 && match(b, off, len, "MESSAGE")) {
+			int ch = frame.child(0, 1);
+			int data = frame.child(0, 2);
+			Subscriber s = _channels.find(b, frame.offset(ch), frame.length(ch));
+			if (s != null) {
+				s.OnMessage(b, frame.offset(ch), frame.length(ch), 
+						b, frame.offset(data), Math.max(frame.length(data), 0));
+			}
+			return true;
+		}
+		if (count == 4 && match(b, off, len, "PMESSAGE")) {
+			int pattern = frame.child(0, 1);
+			int ch = frame.child(0, 2);
+			int data = frame.child(0, 3);
+			Subscriber s = _patterns.find(b, frame.offset(pattern), frame.length(pattern));
+			if (s != null) {
+				s.OnMessage(b, frame.offset(ch), frame.length(ch), 
+						b, frame.offset(data), Math.max(frame.length(data), 0));
+			}
+			return true;
+		}
+		return confirmed(b, off, len, frame.getLong(frame.child(0, 2)));
+	}
+	
+	// handle pushed message of pub/sub
+	private boolean pushed(CoreRedis.Element element) {
+		CoreRedis.Element[] child = element.child;
+		if (element.cmd != '*' || child == null || child.length < 3) return false;
+		byte[] kind = child[0].data;
+		if (kind == null) return false;
+		if (child.length == 3 && match(kind, 0, kind.length, "MESSAGE")) {
+			byte[] ch = child[1].data;
+			byte[] data = child[2].data;
+			Subscriber s = (ch == null)? null : _channels.find(ch, 0, ch.length);
+			if (s != null) {
+				if (data == null) data = new byte[0];
+				s.OnMessage(ch, 0, ch.length, data, 0, data.length);
+			}
+			return true;
+		}
+		if (child.length == 4 && match(kind, 0, kind.length, "PMESSAGE")) {
+			byte[] pattern = child[1].data;
+			byte[] ch = child[2].data;
+			byte[] data = child[3].data;
+			Subscriber s = (pattern == null)? null : _patterns.find(pattern, 0, pattern.length);
+			if (s != null && ch != null) {
+				if (data == null) data = new byte[0];
+				s.OnMessage(ch, 0, ch.length, data, 0, data.length);
+			}
+			return true;
+		}
+		return confirmed(kind, 0, kind.length, child[2].number);
+	}
+	
+	// replies of (un)subscribe are not queued as requests
+	private boolean confirmed(byte[] b, int off, int len, long count) {
+		if (match(b, off, len, "SUBSCRIBE") || match(b, off, len, "PSUBSCRIBE")) {
+			return true;
+		}
+		if (match(b, off, len, "UNSUBSCRIBE") || match(b, off, len, "PUNSUBSCRIBE")) {
+			if (count == 0 && _channels.size() == 0 && _patterns.size() == 0) {
+				_pubsub = false;
+			}
+			return true;
+		}
+		return false;
+	}
+	
+	// send (un)subscribe without queuing a reply
+	private void command(String cmd, byte[] name) {
+		if (_state != CoreNet.STATE_ESTAB) return;
+		commitBatch();
+		_encoder.reset();
+		_encoder.array(2).bulk(cmd).bulk(name);
+		_net.send(_encoder.array(), 0, _encoder.size(), 0);
+		_encoder.reset();
+		_pubsub = true;
+	}
+	
+	// restore subscriptions after connected
+	private void resubscribe() {
+		if (_channels.size() > 0) {
+			_encoder.reset();
+			_encoder.array(_channels.size() + 1).bulk("SUBSCRIBE");
+			_channels.encode(_encoder);
+			_net.send(_encoder.array(), 0, _encoder.size(), 0);
+			_pubsub = true;
+		}
+		if (_patterns.size() > 0) {
+			_encoder.reset();
+			_encoder.array(_patterns.size() + 1).bulk("PSUBSCRIBE");
+			_patterns.encode(_encoder);
+			_net.send(_encoder.array(), 0, _encoder.size(), 0);
+			_pubsub = true;
+		}
+		_encoder.reset();
+	}
+	
+	private static byte[] bytes(String s) {
+		return s.getBytes(CoreReader.UTF8_CHARSET);
+	}
+	
+	/**
+	 * Subscribe a channel, messages are dispatched to the subscriber by
+	 * the channel bytes without building objects (use flat(true) for
+	 * the cheapest path). Subscriptions are restored after reconnected.
+	 * NOTE: a subscribed connection can only send (P)(UN)SUBSCRIBE, 
+	 * PING and QUIT (RESP2).
+	 * @param channel channel name
+	 * @param subscriber handler, replaces the previous one
+	 */
+	public void subscribe(byte[] channel, Subscriber subscriber) {
+		byte[] key = channel.clone();
+		boolean exist = _channels.find(key, 0, key.length) != null;
+		_channels.put(key, subscriber);
+		if (!exist) command("SUBSCRIBE", key);
+	}
+	
+	public void subscribe(String channel, Subscriber subscriber) {
+		subscribe(bytes(channel), subscriber);
+	}
+	
+	/**
+	 * Subscribe a pattern (PSUBSCRIBE), messages are dispatched by the
+	 * pattern, OnMessage receives the actual channel.
+	 * @param pattern glob-style pattern
+	 * @param subscriber handler, replaces the previous one
+	 */
+	public void psubscribe(byte[] pattern, Subscriber subscriber) {
+		byte[] key = pattern.clone();
+		boolean exist = _patterns.find(key, 0, key.length) != null;
+		_patterns.put(key, subscriber);
+		if (!exist) command("PSUBSCRIBE", key);
+	}
+	
+	public void psubscribe(String pattern, Subscriber subscriber) {
+		psubscribe(bytes(pattern), subscriber);
+	}
+	
+	public void unsubscribe(byte[] channel) {
+		if (_channels.remove(channel)) command("UNSUBSCRIBE", channel);
+	}
+	
+	public void unsubscribe(String channel) {
+		unsubscribe(bytes(channel));
+	}
+	
+	public void punsubscribe(byte[] pattern) {
+		if (_patterns.remove(pattern)) command("PUNSUBSCRIBE", pattern);
+	}
+	
+	public void punsubscribe(String pattern) {
+		punsubscribe(bytes(pattern));
+	}
+	
+	/**
+	 * get how many requests are waiting for response
+	 * @return request count
+	 */
+	public int pending() {
+		return _pending.size();
+	}
+	
+	/**
+	 * Set output buffer limit (1MB by default), the connection will be
+	 * closed if too many requests are pending in the output buffer.
+	 * It is kept across reconnection.
+	 * @param bufferLimit bytes
+	 */
+	public void limit(int bufferLimit) {
+		_limit = bufferLimit;
+		if (_net != null) _net.limit(bufferLimit);
+	}
+	
+	/**
+	 * send the batch and try to send the output buffer now instead 
+	 * of waiting update()
+	 */
+	public void flush() {
+		if (_net == null) return;
+		commitBatch();
+		_net.flush();
 	}
 	
 	// convert elements of response from byte[] to string
@@ -207,6 +970,32 @@ public class AsyncRedis {
 		return _convert_string;
 	}
 	
+	/**
+	 * Stream bulk strings which are not smaller than threshold, their
+	 * content goes to the StreamReply of the request, or to the default
+	 * handler for other requests (discarded if handler is null).
+	 * @param threshold size in bytes, 0 to disable streaming
+	 * @param handler default consumer
+	 */
+	public void stream(int threshold, CoreRedis.BulkStream handler) {
+		if (_redis == null) return;
+		_stream = handler;
+		if (threshold <= 0) {
+			_redis.stream(0, null);
+		}	else {
+			_redis.stream(threshold, new Streamer());
+		}
+	}
+	
+	/**
+	 * Parse responses into flat frames, FrameReply reads them directly,
+	 * other replies still get translated objects. Must be set before
+	 * connect().
+	 */
+	public void flat(boolean on) {
+		if (_redis != null) _redis.flat(on);
+	}
+	
 	/**
 	 * testing case
 	 * @param args ignore
@@ -273,6 +1062,20 @@ public class AsyncRedis {
 		r.request("hgetall", "myhash");
 		r.request("EXEC");
 		
+		for (int i = 0; i < 10; i++) {
+			final int index = i;
+			r.request(new Reply() {
+				@Override
+				public void OnReply(Object response) {
+					System.out.printf("OnReply(%d, %s)\n", index, response);
+				}
+				@Override
+				public void OnError(RedisError error) {
+					System.out.printf("OnError(%d, %s)\n", index, error.getMessage());
+				}
+			}, "incr", "counter");
+		}
+		
 		r.request("ECHO", "QUIT");
 		r.request("QUIT");
 		
@@ -0,0 +1,501 @@
+package asclib.net;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import asclib.core.CoreCache;
+import asclib.core.CoreReader;
+import asclib.core.CoreRedis.RedisError;
+
+
+/**
+ * Near cache for GET / HGET in front of AsyncRedis. Values are kept in
+ * a CoreCache (LRU) bounded by entry count and weight (bytes), each
+ * entry has a TTL. The cache is only used while it is coherent:
+ *
+ * 1. tracking mode (default, redis 6+): a second connection subscribes
+ *    __redis__:invalidate, and the data connection enables
+ *    "CLIENT TRACKING ON REDIRECT <id>", so redis pushes the keys which
+ *    have been modified.
+ * 2. channel mode: a second connection subscribes the given channel, and
+ *    writers publish the modified keys (or "*" to flush) to it.
+ *
+ * The whole cache is dropped when either connection is lost. Replies of
+ * hits are invoked synchronously inside get() / hget().
+ */
+public class AsyncRedisCache {
+
+	private static final String INVALIDATE = "__redis__:invalidate";
+	private static final Object NIL = new Object();
+
+	private static class Entry {
+		String key;
+		String field;
+		Object value;
+		int weight;
+	}
+
+	// fetching a key, replies of the same key are merged
+	private class Fetch extends AsyncRedis.Reply {
+		String name;
+		String key;
+		String field;
+		int ttl;
+		boolean stale = false;
+		ArrayList<AsyncRedis.Reply> replies = new ArrayList<AsyncRedis.Reply>(1);
+
+		@Override
+		public void OnReply(Object response) {
+			finish(this);
+			if (!stale && _coherent) {
+				store(name, key, field, response, ttl);
+			}
+			for (int i = 0; i < replies.size(); i++) {
+				replies.get(i).OnReply(response);
+			}
+		}
+
+		@Override
+		public void OnError(RedisError error) {
+			finish(this);
+			for (int i = 0; i < replies.size(); i++) {
+				replies.get(i).OnError(error);
+			}
+		}
+	}
+
+	private AsyncRedis _redis = new AsyncRedis();
+	private AsyncRedis _listen = new AsyncRedis();
+	private AsyncRedis.Callback _callback = null;
+
+	private CoreCache<String, Entry> _cache = new CoreCache<String, Entry>(CoreCache.LRU, 10000, 64L << 20);
+	private HashMap<String, HashSet<String>> _fields = new HashMap<String, HashSet<String>>();
+	private HashMap<String, Fetch> _fetching = new HashMap<String, Fetch>();
+	private HashMap<String, ArrayList<Fetch>> _inflight = new HashMap<String, ArrayList<Fetch>>();
+
+	private String _channel = null;
+	private boolean _coherent = false;
+	private boolean _subscribed = false;
+	private boolean _estab = false;
+	private long _client_id = -1;
+
+	private int _ttl = 60000;
+
+	private long _hits = 0;
+	private long _misses = 0;
+	private long _invalidations = 0;
+
+	public AsyncRedisCache() {
+		_cache.setWeigher(new CoreCache.Weigher<String, Entry>() {
+			@Override
+			public long OnWeigh(String name, Entry entry) {
+				return entry.weight;
+			}
+		});
+		_cache.setListener(new CoreCache.Listener<String, Entry>() {
+			@Override
+			public void OnRemove(String name, Entry entry, int cause) {
+				unindex(name, entry);
+			}
+		});
+		_redis.callback(new AsyncRedis.Callback() {
+			@Override
+			public void OnResponse(Object response) {
+				if (_callback != null) _callback.OnResponse(response);
+			}
+			@Override
+			public void OnError(RedisError error) {
+				if (_callback != null) _callback.OnError(error);
+			}
+			@Override
+			public void OnStart() {
+				if (_callback != null) _callback.OnStart();
+			}
+			@Override
+			public void OnConnected() {
+				_estab = true;
+				track();
+				if (_callback != null) _callback.OnConnected();
+			}
+			@Override
+			public void OnDisconnect() {
+				_estab = false;
+				if (_channel == null) incoherent();
+				if (_callback != null) _callback.OnDisconnect();
+			}
+		});
+		_listen.callback(new AsyncRedis.Callback() {
+			@Override
+			public void OnResponse(Object response) {
+				message(response);
+			}
+			@Override
+			public void OnError(RedisError error) {
+			}
+			@Override
+			public void OnStart() {
+			}
+			@Override
+			public void OnConnected() {
+				listen();
+			}
+			@Override
+			public void OnDisconnect() {
+				_subscribed = false;
+				_client_id = -1;
+				incoherent();
+			}
+		});
+	}
+
+	/**
+	 * set callback of the data connection
+	 */
+	public AsyncRedis.Callback callback(AsyncRedis.Callback cb) {
+		AsyncRedis.Callback o = _callback;
+		_callback = cb;
+		return o;
+	}
+
+	/**
+	 * use a pub/sub channel for invalidation instead of client tracking,
+	 * must be called before connect()
+	 * @param channel channel name, null to use client tracking
+	 */
+	public void channel(String channel) {
+		_channel = channel;
+	}
+
+	/**
+	 * set bounds of the cache, the least recently used entries will be evicted
+	 * @param count max entries
+	 * @param weight max bytes of keys and values
+	 */
+	public void limit(int count, long weight) {
+		_cache.limit(count, weight);
+	}
+
+	/**
+	 * set default time to live
+	 * @param millisec ttl of entries
+	 */
+	public void ttl(int millisec) {
+		_ttl = millisec;
+	}
+
+	/**
+	 * connect to redis (two connections)
+	 */
+	public void connect(String ip, int port, int timeout, int reconnect) {
+		_listen.connect(ip, port, timeout, reconnect);
+		_redis.connect(ip, port, timeout, reconnect);
+	}
+
+	public void connect(String ip, int port) {
+		connect(ip, port, 10, 5);
+	}
+
+	public void close() {
+		_listen.close();
+		_redis.close();
+		incoherent();
+	}
+
+	/**
+	 * Call it every interval (eg.10ms)
+	 */
+	public void update() {
+		_listen.update();
+		_redis.update();
+	}
+
+	/**
+	 * get the data connection to send other commands
+	 */
+	public AsyncRedis redis() {
+		return _redis;
+	}
+
+	/**
+	 * whether or not the cache is in use
+	 */
+	public boolean coherent() {
+		return _coherent;
+	}
+
+	// subscribe on the listening connection
+	private void listen() {
+		if (_channel != null) {
+			_listen.request(new AsyncRedis.Reply() {
+				@Override
+				public void OnReply(Object response) {
+					_subscribed = true;
+					_coherent = true;
+				}
+				@Override
+				public void OnError(RedisError error) {
+				}
+			}, "SUBSCRIBE", _channel);
+			return;
+		}
+		_listen.request(new AsyncRedis.Reply() {
+			@Override
+			public void OnReply(Object response) {
+				if (response instanceof Number) {
+					_client_id = ((Number)response).longValue();
+				}
+			}
+			@Override
+			public void OnError(RedisError error) {
+			}
+		}, "CLIENT", "ID");
+		_listen.request(new AsyncRedis.Reply() {
+			@Override
+			public void OnReply(Object response) {
+				_subscribed = true;
+				track();
+			}
+			@Override
+			public void OnError(RedisError error) {
+			}
+		}, "SUBSCRIBE", INVALIDATE);
+	}
+
+	// enable client tracking on the data connection
+	private void track() {
+		if (_channel != null || !_estab || !_subscribed || _client_id < 0) return;
+		_redis.request(new AsyncRedis.Reply() {
+			@Override
+			public void OnReply(Object response) {
+				_coherent = true;
+			}
+			@Override
+			public void OnError(RedisError error) {
+			}
+		}, "CLIENT", "TRACKING", "ON", "REDIRECT", _client_id);
+	}
+
+	private void incoherent() {
+		_coherent = false;
+		clear();
+	}
+
+	// pushed message: [message, channel, payload]
+	private void message(Object response) {
+		if (!(response instanceof List)) return;
+		List<?> list = (List<?>)response;
+		if (list.size() < 3 || !"message".equals(text(list.get(0)))) return;
+		Object payload = list.get(2);
+		if (payload == null) {
+			clear();
+		}
+		else if (payload instanceof List) {
+			for (Object key: (List<?>)payload) {
+				invalidate(text(key));
+			}
+		}
+		else {
+			String key = text(payload);
+			if (_channel != null && key.equals("*")) clear();
+			else invalidate(key);
+		}
+	}
+
+	private static String text(Object o) {
+		if (o instanceof byte[]) return new String((byte[])o, CoreReader.UTF8_CHARSET);
+		return (o == null)? null : o.toString();
+	}
+
+	private static int weigh(String key, String field, Object value) {
+		int size = 48 + key.length() * 2;
+		if (field != null) size += field.length() * 2;
+		if (value instanceof byte[]) size += ((byte[])value).length;
+		else if (value instanceof String) size += ((String)value).length() * 2;
+		return size;
+	}
+
+	private static String name(String key, String field) {
+		return (field == null)? key : key + '\0' + field;
+	}
+
+	private void store(String name, String key, String field, Object value, int ttl) {
+		if (ttl <= 0) return;
+		remove(name);
+		Entry entry = new Entry();
+		entry.key = key;
+		entry.field = field;
+		entry.value = (value == null)? NIL : value;
+		entry.weight = weigh(key, field, value);
+		if (field != null) {
+			HashSet<String> fields = _fields.get(key);
+			if (fields == null) {
+				fields = new HashSet<String>();
+				_fields.put(key, fields);
+			}
+			fields.add(name);
+		}
+		_cache.put(name, entry, ttl);
+	}
+
+	private Entry remove(String name) {
+		return _cache.remove(name);
+	}
+
+	// entry left the cache (evicted, expired or removed)
+	private void unindex(String name, Entry entry) {
+		if (entry.field != null) {
+			HashSet<String> fields = _fields.get(entry.key);
+			if (fields != null) {
+				fields.remove(name);
+				if (fields.isEmpty()) _fields.remove(entry.key);
+			}
+		}
+	}
+
+	private void finish(Fetch fetch) {
+		_fetching.remove(fetch.name);
+		ArrayList<Fetch> list = _inflight.get(fetch.key);
+		if (list != null) {
+			list.remove(fetch);
+			if (list.isEmpty()) _inflight.remove(fetch.key);
+		}
+	}
+
+	/**
+	 * drop a key (and all the cached fields of it)
+	 */
+	public void invalidate(String key) {
+		if (key == null) return;
+		_invalidations++;
+		remove(key);
+		HashSet<String> fields = _fields.remove(key);
+		if (fields != null) {
+			for (String name: fields) {
+				_cache.remove(name);
+			}
+		}
+		ArrayList<Fetch> list = _inflight.get(key);
+		if (list != null) {
+			for (int i = 0; i < list.size(); i++) {
+				list.get(i).stale = true;
+			}
+		}
+	}
+
+	/**
+	 * drop all the entries
+	 */
+	public void clear() {
+		_cache.clear();
+		_fields.clear();
+		for (Fetch fetch: _fetching.values()) {
+			fetch.stale = true;
+		}
+	}
+
+	private void fetch(String key, String field, int ttl, AsyncRedis.Reply reply) {
+		String name = name(key, field);
+		if (_coherent) {
+			Entry entry = _cache.get(name);
+			if (entry != null) {
+				_hits++;
+				reply.OnReply((entry.value == NIL)? null : entry.value);
+				return;
+			}
+		}
+		_misses++;
+		Fetch fetch = _fetching.get(name);
+		if (fetch != null) {
+			fetch.replies.add(reply);
+			return;
+		}
+		fetch = new Fetch();
+		fetch.name = name;
+		fetch.key = key;
+		fetch.field = field;
+		fetch.ttl = ttl;
+		fetch.stale = !_coherent;
+		fetch.replies.add(reply);
+		_fetching.put(name, fetch);
+		ArrayList<Fetch> list = _inflight.get(key);
+		if (list == null) {
+			list = new ArrayList<Fetch>(1);
+			_inflight.put(key, list);
+		}
+		list.add(fetch);
+		if (field == null) {
+			_redis.request(fetch, "GET", key);
+		}	else {
+			_redis.request(fetch, "HGET", key, field);
+		}
+	}
+
+	/**
+	 * GET key, from the cache if possible
+	 * @param key redis key
+	 * @param ttl time to live of the cached value (in milliseconds)
+	 * @param reply callback
+	 */
+	public void get(String key, int ttl, AsyncRedis.Reply reply) {
+		fetch(key, null, ttl, reply);
+	}
+
+	public void get(String key, AsyncRedis.Reply reply) {
+		fetch(key, null, _ttl, reply);
+	}
+
+	/**
+	 * HGET key field, from the cache if possible
+	 * @param key redis key
+	 * @param field hash field
+	 * @param ttl time to live of the cached value (in milliseconds)
+	 * @param reply callback
+	 */
+	public void hget(String key, String field, int ttl, AsyncRedis.Reply reply) {
+		fetch(key, field, ttl, reply);
+	}
+
+	public void hget(String key, String field, AsyncRedis.Reply reply) {
+		fetch(key, field, _ttl, reply);
+	}
+
+	/**
+	 * how many entries are cached
+	 */
+	public int size() {
+		return _cache.size();
+	}
+
+	/**
+	 * how many bytes are cached (estimated)
+	 */
+	public long weight() {
+		return _cache.weight();
+	}
+
+	public long hits() {
+		return _hits;
+	}
+
+	public long misses() {
+		return _misses;
+	}
+
+	public long evictions() {
+		return _cache.evictions();
+	}
+
+	public long invalidations() {
+		return _invalidations;
+	}
+
+	/**
+	 * hits / (hits + misses)
+	 */
+	public double hitRate() {
+		long total = _hits + _misses;
+		return (total == 0)? 0.0 : ((double)_hits) / total;
+	}
+}
@@ -0,0 +1,561 @@
+package asclib.net;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import asclib.core.CoreReader;
+import asclib.core.CoreRedis;
+import asclib.core.CoreRedis.RedisError;
+
+
+/**
+ * Redis cluster client. Keys are mapped to 16384 hash slots by CRC16
+ * (with {hash tag} support), each node has its own pipelined AsyncRedis,
+ * and all of them are driven by update(). MOVED updates the slot map and
+ * schedules a refresh (CLUSTER SLOTS), ASK is followed once by ASKING.
+ * Multi-key commands (MGET, MSET, DEL, UNLINK, EXISTS, TOUCH) are split
+ * by slot, sent in parallel and their results are merged.
+ *
+ * NOTE: the key of other commands is the first argument (keys of EVAL
+ * and EVALSHA are after numkeys), commands without key go to any node.
+ */
+public class AsyncRedisCluster {
+
+	public static final int SLOTS = 16384;
+
+	private static class Node {
+		String host;
+		int port;
+		AsyncRedis redis;
+	}
+
+	private HashMap<String, Node> _nodes = new HashMap<String, Node>();
+	private ArrayList<Node> _list = new ArrayList<Node>();
+	private ArrayList<Node> _retired = new ArrayList<Node>();
+	private Node[] _slots = new Node[SLOTS];
+
+	private int _timeout = 10;
+	private int _reconnect = 5;
+	private boolean _convert_string = true;
+	private int _redirect_limit = 5;
+
+	private boolean _refresh = false;
+	private boolean _refreshing = false;
+	private long _refresh_ts = -1;
+	private int _refresh_interval = 1000;
+	private int _balance = 0;
+
+	private long _moved = 0;
+	private long _asked = 0;
+
+	private static final AsyncRedis.Reply NONE = new AsyncRedis.Reply() {
+		public void OnReply(Object response) {}
+		public void OnError(RedisError error) {}
+	};
+
+
+	//---------------------------------------------------------------------
+	// hash slot
+	//---------------------------------------------------------------------
+	private static final int[] CRC16_TABLE = new int[256];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			int crc = i << 8;
+			for (int j = 0; j < 8; j++) {
+				crc = ((crc & 0x8000) != 0)? ((crc << 1) ^ 0x1021) : (crc << 1);
+			}
+			CRC16_TABLE[i] = crc & 0xffff;
+		}
+	}
+
+	/**
+	 * CRC16 (XMODEM) used by redis cluster
+	 */
+	public static int crc16(byte[] data, int off, int len) {
+		int crc = 0;
+		for (int i = off, end = off + len; i < end; i++) {
+			crc = ((crc << 8) ^ CRC16_TABLE[((crc >>> 8) ^ data[i]) & 0xff]) & 0xffff;
+		}
+		return crc;
+	}
+
+	/**
+	 * calculate hash slot of key, only the part between the first '{'
+	 * and the following '}' is hashed if it is not empty.
+	 * @return slot (0 to 16383)
+	 */
+	public static int slot(byte[] key, int off, int len) {
+		for (int i = 0; i < len; i++) {
+			if (key[off + i] == '{') {
+				for (int j = i + 1; j < len; j++) {
+					if (key[off + j] == '}') {
+						if (j > i + 1) {
+							return crc16(key, off + i + 1, j - i - 1) & (SLOTS - 1);
+						}
+						break;
+					}
+				}
+				break;
+			}
+		}
+		return crc16(key, off, len) & (SLOTS - 1);
+	}
+
+	/**
+	 * calculate hash slot of key in String, byte[] or Number
+	 */
+	public static int slot(Object key) {
+		byte[] data = null;
+		if (key instanceof byte[]) {
+			data = (byte[])key;
+		}
+		else {
+			data = String.valueOf(key).getBytes(CoreReader.UTF8_CHARSET);
+		}
+		return slot(data, 0, data.length);
+	}
+
+
+	//---------------------------------------------------------------------
+	// nodes
+	//---------------------------------------------------------------------
+	private Node node(String host, int port) {
+		String name = host + ":" + port;
+		Node node = _nodes.get(name);
+		if (node == null) {
+			// a pruned node known again is routed to as it is
+			for (int i = 0; i < _retired.size(); i++) {
+				Node n = _retired.get(i);
+				if (n.host.equals(host) && n.port == port) {
+					_retired.remove(i);
+					_nodes.put(name, n);
+					_list.add(n);
+					return n;
+				}
+			}
+			node = new Node();
+			node.host = host;
+			node.port = port;
+			node.redis = new AsyncRedis();
+			node.redis.convert(_convert_string);
+			node.redis.connect(host, port, _timeout, _reconnect);
+			_nodes.put(name, node);
+			_list.add(node);
+		}
+		return node;
+	}
+
+	/**
+	 * add a seed node, the slot map will be loaded from it
+	 * @param ip node address
+	 * @param port node port
+	 * @param timeout connection timeout (in seconds)
+	 * @param reconnect reconnect timeout (in seconds)
+	 */
+	public void connect(String ip, int port, int timeout, int reconnect) {
+		_timeout = timeout;
+		_reconnect = reconnect;
+		node(ip, port);
+		_refresh = true;
+	}
+
+	public void connect(String ip, int port) {
+		connect(ip, port, 10, 5);
+	}
+
+	/**
+	 * close all the connections and pending requests will fail
+	 */
+	public void close() {
+		for (int i = 0; i < _list.size(); i++) {
+			_list.get(i).redis.close();
+		}
+		for (int i = 0; i < _list.size(); i++) {
+			_list.get(i).redis.destroy();
+		}
+		for (int i = 0; i < _retired.size(); i++) {
+			_retired.get(i).redis.close();
+			_retired.get(i).redis.destroy();
+		}
+		_retired.clear();
+		_nodes.clear();
+		_list.clear();
+		_slots = new Node[SLOTS];
+		_refreshing = false;
+	}
+
+	/**
+	 * Call it every interval (eg.10ms), it updates all the nodes
+	 */
+	public void update() {
+		for (int i = 0; i < _list.size(); i++) {
+			_list.get(i).redis.update();
+		}
+		retire();
+		if (_refresh && !_refreshing && _list.size() > 0) {
+			long current = System.currentTimeMillis();
+			if (_refresh_ts < 0 || current - _refresh_ts >= _refresh_interval) {
+				refresh();
+			}
+		}
+	}
+
+	// the nodes dropped by load() get no new request but keep running
+	// until their in-flight requests are answered, then they are closed
+	private void retire() {
+		Node[] nodes = _retired.toArray(new Node[_retired.size()]);
+		for (Node node: nodes) {
+			node.redis.update();
+			if (node.redis.pending() == 0 && _retired.remove(node)) {
+				node.redis.close();
+				node.redis.destroy();
+			}
+		}
+	}
+
+	/**
+	 * send all the nodes' output buffer now
+	 */
+	public void flush() {
+		for (int i = 0; i < _list.size(); i++) {
+			_list.get(i).redis.flush();
+		}
+		for (int i = 0; i < _retired.size(); i++) {
+			_retired.get(i).redis.flush();
+		}
+	}
+
+	/**
+	 * reload slot map by CLUSTER SLOTS
+	 */
+	public void refresh() {
+		if (_list.isEmpty()) return;
+		final Node node = _list.get((_balance++ & 0x7fffffff) % _list.size());
+		_refresh = false;
+		_refreshing = true;
+		_refresh_ts = System.currentTimeMillis();
+		node.redis.request(new AsyncRedis.Reply() {
+			@Override
+			public void OnReply(Object response) {
+				_refreshing = false;
+				if (!load(node, response)) {
+					_refresh = true;
+				}
+			}
+			@Override
+			public void OnError(RedisError error) {
+				_refreshing = false;
+				_refresh = true;
+			}
+		}, "CLUSTER", "SLOTS");
+	}
+
+	private static String text(Object o) {
+		if (o instanceof byte[]) return new String((byte[])o, CoreReader.UTF8_CHARSET);
+		return (o == null)? "" : o.toString();
+	}
+
+	private static int number(Object o) {
+		if (o instanceof Number) return ((Number)o).intValue();
+		try {
+			return Integer.parseInt(text(o));
+		}	catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	// parse reply of CLUSTER SLOTS: [[start, end, [host, port, id], replicas...], ...]
+	private boolean load(Node from, Object response) {
+		if (!(response instanceof List)) return false;
+		Node[] slots = new Node[SLOTS];
+		for (Object item: (List<?>)response) {
+			if (!(item instanceof List)) return false;
+			List<?> range = (List<?>)item;
+			if (range.size() < 3 || !(range.get(2) instanceof List)) return false;
+			int start = number(range.get(0));
+			int end = number(range.get(1));
+			List<?> master = (List<?>)range.get(2);
+			if (master.size() < 2 || start < 0 || end >= SLOTS) return false;
+			String host = text(master.get(0));
+			int port = number(master.get(1));
+			if (host.length() == 0 || host.equals("?")) host = from.host;
+			Node node = node(host, port);
+			for (int i = start; i <= end; i++) {
+				slots[i] = node;
+			}
+		}
+		_slots = slots;
+		// drop the nodes which own no slot (removed, or seeds known by
+		// another address), they are closed once drained, see retire()
+		HashSet<Node> owners = new HashSet<Node>();
+		for (int i = 0; i < SLOTS; i++) {
+			if (slots[i] != null) owners.add(slots[i]);
+		}
+		if (owners.isEmpty()) return true;
+		for (int i = _list.size() - 1; i >= 0; i--) {
+			Node node = _list.get(i);
+			if (!owners.contains(node)) {
+				_list.remove(i);
+				_nodes.remove(node.host + ":" + node.port);
+				_retired.add(node);
+			}
+		}
+		return true;
+	}
+
+	private Node route(int slot) {
+		Node node = (slot >= 0)? _slots[slot] : null;
+		if (node == null) {
+			if (_list.isEmpty()) return null;
+			node = _list.get((_balance++ & 0x7fffffff) % _list.size());
+		}
+		return node;
+	}
+
+
+	//---------------------------------------------------------------------
+	// requests
+	//---------------------------------------------------------------------
+
+	// request routed to a node, follows MOVED and ASK
+	private class Command extends AsyncRedis.Reply {
+		AsyncRedis.Reply reply;
+		Object[] args;
+		int redirects = 0;
+
+		Command(AsyncRedis.Reply reply, Object[] args) {
+			this.reply = reply;
+			this.args = args;
+		}
+
+		@Override
+		public void OnReply(Object response) {
+			reply.OnReply(response);
+		}
+
+		@Override
+		public void OnError(RedisError error) {
+			String what = error.getMessage();
+			if (what != null && redirects < _redirect_limit) {
+				boolean moved = what.startsWith("MOVED ");
+				if (moved || what.startsWith("ASK ")) {
+					String[] parts = what.split(" ");
+					int pos = (parts.length >= 3)? parts[2].lastIndexOf(':') : -1;
+					if (pos > 0) {
+						int slot = number(parts[1]);
+						int port = number(parts[2].substring(pos + 1));
+						Node node = node(parts[2].substring(0, pos), port);
+						redirects++;
+						if (moved) {
+							if (slot >= 0 && slot < SLOTS) _slots[slot] = node;
+							_refresh = true;
+							_moved++;
+						}	else {
+							node.redis.request(null, "ASKING");
+							_asked++;
+						}
+						node.redis.request(this, args);
+						return;
+					}
+				}
+			}
+			reply.OnError(error);
+		}
+	}
+
+	// merge the replies of a multi-key command
+	private static class Gather {
+		AsyncRedis.Reply reply;
+		Object[] values = null;
+		long sum = 0;
+		Object status = null;
+		int remain = 0;
+		RedisError error = null;
+
+		void done() {
+			if (--remain > 0) return;
+			if (error != null) {
+				reply.OnError(error);
+			}
+			else if (values != null) {
+				ArrayList<Object> array = new ArrayList<Object>(values.length);
+				for (int i = 0; i < values.length; i++) array.add(values[i]);
+				reply.OnReply(array);
+			}
+			else if (sum >= 0) {
+				if (sum == (int)sum) reply.OnReply(Integer.valueOf((int)sum));
+				else reply.OnReply(Long.valueOf(sum));
+			}
+			else {
+				reply.OnReply(status);
+			}
+		}
+	}
+
+	// one slot of a multi-key command
+	private static class Part extends AsyncRedis.Reply {
+		Gather gather;
+		int[] index;
+
+		Part(Gather gather, int[] index) {
+			this.gather = gather;
+			this.index = index;
+		}
+
+		@Override
+		public void OnReply(Object response) {
+			if (gather.values != null && response instanceof List) {
+				List<?> list = (List<?>)response;
+				for (int i = 0; i < index.length && i < list.size(); i++) {
+					gather.values[index[i]] = list.get(i);
+				}
+			}
+			else if (gather.sum >= 0 && response instanceof Number) {
+				gather.sum += ((Number)response).longValue();
+			}
+			else if (gather.sum < 0 && gather.status == null) {
+				gather.status = response;
+			}
+			gather.done();
+		}
+
+		@Override
+		public void OnError(RedisError error) {
+			if (gather.error == null) gather.error = error;
+			gather.done();
+		}
+	}
+
+	private static String name(Object o) {
+		if (o instanceof String) return ((String)o).toUpperCase();
+		return text(o).toUpperCase();
+	}
+
+	// position of the key, -1 for no key
+	private static int keyOf(String cmd, Object[] args) {
+		if (cmd.equals("EVAL") || cmd.equals("EVALSHA")) {
+			return (args.length > 3 && number(args[2]) > 0)? 3 : -1;
+		}
+		return (args.length > 1)? 1 : -1;
+	}
+
+	/**
+	 * send request to the node which owns the key, eg: request(reply, "GET", key).
+	 * @param reply callback of this request, null to ignore the response
+	 * @param args command and arguments
+	 * @return true for success, false if no node
+	 */
+	public boolean request(AsyncRedis.Reply reply, Object ... args) {
+		if (reply == null) reply = NONE;
+		if (args.length == 0) return false;
+		String cmd = name(args[0]);
+		if (args.length > 2) {
+			if (cmd.equals("MGET")) {
+				return fanout(reply, args, 1, true);
+			}
+			if (cmd.equals("MSET")) {
+				return fanout(reply, args, 2, false);
+			}
+			if (cmd.equals("DEL") || cmd.equals("UNLINK") ||
+				cmd.equals("EXISTS") || cmd.equals("TOUCH")) {
+				return fanout(reply, args, 1, false);
+			}
+		}
+		int pos = keyOf(cmd, args);
+		Node node = route((pos >= 0)? slot(args[pos]) : -1);
+		if (node == null) return false;
+		return node.redis.request(new Command(reply, args), args);
+	}
+
+	// split keys (with step-1 values) by slot and send in parallel
+	private boolean fanout(AsyncRedis.Reply reply, Object[] args, int step, boolean values) {
+		int count = (args.length - 1) / step;
+		LinkedHashMap<Integer, ArrayList<Integer>> groups = new LinkedHashMap<Integer, ArrayList<Integer>>();
+		for (int i = 0; i < count; i++) {
+			Integer slot = slot(args[1 + i * step]);
+			ArrayList<Integer> group = groups.get(slot);
+			if (group == null) {
+				group = new ArrayList<Integer>();
+				groups.put(slot, group);
+			}
+			group.add(i);
+		}
+		if (groups.size() == 1) {
+			Node node = route(groups.keySet().iterator().next());
+			if (node == null) return false;
+			return node.redis.request(new Command(reply, args), args);
+		}
+		Gather gather = new Gather();
+		gather.reply = reply;
+		gather.remain = groups.size();
+		if (values) gather.values = new Object[count];
+		if (step > 1) gather.sum = -1;
+		boolean hr = true;
+		for (Map.Entry<Integer, ArrayList<Integer>> entry: groups.entrySet()) {
+			ArrayList<Integer> group = entry.getValue();
+			int[] index = new int[group.size()];
+			Object[] part = new Object[1 + group.size() * step];
+			part[0] = args[0];
+			for (int i = 0; i < index.length; i++) {
+				index[i] = group.get(i);
+				for (int j = 0; j < step; j++) {
+					part[1 + i * step + j] = args[1 + index[i] * step + j];
+				}
+			}
+			Node node = route(entry.getKey());
+			Command command = new Command(new Part(gather, index), part);
+			if (node == null) {
+				command.OnError(new RedisError("no node available"));
+				hr = false;
+			}
+			else if (!node.redis.request(command, part)) {
+				hr = false;
+			}
+		}
+		return hr;
+	}
+
+	// convert elements of response from byte[] to string
+	public void convert(boolean on) {
+		_convert_string = on;
+		for (int i = 0; i < _list.size(); i++) {
+			_list.get(i).redis.convert(on);
+		}
+		for (int i = 0; i < _retired.size(); i++) {
+			_retired.get(i).redis.convert(on);
+		}
+	}
+
+	/**
+	 * get how many nodes are known
+	 */
+	public int size() {
+		return _list.size();
+	}
+
+	/**
+	 * get how many requests are waiting for response on all nodes
+	 */
+	public int pending() {
+		int count = 0;
+		for (int i = 0; i < _list.size(); i++) {
+			count += _list.get(i).redis.pending();
+		}
+		for (int i = 0; i < _retired.size(); i++) {
+			count += _retired.get(i).redis.pending();
+		}
+		return count;
+	}
+
+	/**
+	 * get how many MOVED and ASK redirections have been followed
+	 */
+	public long redirected() {
+		return _moved + _asked;
+	}
+}
@@ -0,0 +1,226 @@
+package asclib.net;
+
+import java.util.Arrays;
+
+import asclib.core.CoreKit;
+
+
+/**
+ * Aggregation stage for ITMC_DATA: collects send() calls within a tick,
+ * finds identical payloads by hash and bytes, and merges them into
+ * groups which will be emitted as one ITMC_BROADCAST. Messages of the
+ * same hid keep their original order: a message can only join a group
+ * that comes after the last group of its hid.
+ */
+public class ChannelBatch {
+
+	private byte[] arena = new byte[0x10000];
+	private int arenaSize = 0;
+
+	// groups: one per distinct payload
+	private int[] gOff = new int[256];
+	private int[] gLen = new int[256];
+	private int[] gHash = new int[256];
+	private int[] gParam = new int[256];
+	private int[] gHead = new int[256];
+	private int[] gTail = new int[256];
+	private int[] gCount = new int[256];
+	private int[] gNext = new int[256];
+	private int groups = 0;
+
+	// members of groups (single linked list)
+	private int[] eHid = new int[1024];
+	private int[] eNext = new int[1024];
+	private int entries = 0;
+
+	// hash table: bucket -> latest group index + 1
+	private static final int TABLE_SIZE = 4096;
+	private int[] table = new int[TABLE_SIZE];
+
+	// last group of each user in current tick
+	private int[] slotHid = new int[0x10000];
+	private int[] slotGroup = new int[0x10000];
+	private int[] slotStamp = new int[0x10000];
+	private int stamp = 1;
+
+	private int[] hids = new int[1024];
+	private long merged = 0;
+
+	/**
+	 * Output of a batch, see {@link ChannelBatch#commit(Output)}
+	 */
+	public static abstract class Output {
+		/**
+		 * emit a message to one user (ITMC_DATA)
+		 */
+		public abstract boolean single(int hid, int lparam, byte[] data, int off, int len);
+
+		/**
+		 * emit a message to many users (ITMC_BROADCAST)
+		 */
+		public abstract boolean multiple(int[] hids, int count, int lparam, byte[] data, int off, int len);
+	}
+
+	private static int hash(byte[] data, int off, int len, int lparam) {
+		int h = 0x811c9dc5 ^ lparam;
+		for (int i = off, end = off + len; i < end; i++) {
+			h = (h ^ (data[i] & 0xff)) * 0x01000193;
+		}
+		return h ^ len;
+	}
+
+	private boolean equals(int g, byte[] data, int off, int len) {
+		int pos = gOff[g];
+		for (int i = 0; i < len; i++) {
+			if (arena[pos + i] != data[off + i]) return false;
+		}
+		return true;
+	}
+
+	private int newGroup(int h, int lparam, byte[] data, int off, int len) {
+		if (groups >= gOff.length) {
+			int newsize = gOff.length * 2;
+			gOff = CoreKit.realloc(gOff, newsize);
+			gLen = CoreKit.realloc(gLen, newsize);
+			gHash = CoreKit.realloc(gHash, newsize);
+			gParam = CoreKit.realloc(gParam, newsize);
+			gHead = CoreKit.realloc(gHead, newsize);
+			gTail = CoreKit.realloc(gTail, newsize);
+			gCount = CoreKit.realloc(gCount, newsize);
+			gNext = CoreKit.realloc(gNext, newsize);
+		}
+		if (arenaSize + len > arena.length) {
+			int newsize = arena.length;
+			while (newsize < arenaSize + len) newsize *= 2;
+			arena = CoreKit.realloc(arena, newsize);
+		}
+		if (len > 0) {
+			System.arraycopy(data, off, arena, arenaSize, len);
+		}
+		int g = groups++;
+		int bucket = h & (TABLE_SIZE - 1);
+		gOff[g] = arenaSize;
+		gLen[g] = len;
+		gHash[g] = h;
+		gParam[g] = lparam;
+		gHead[g] = -1;
+		gTail[g] = -1;
+		gCount[g] = 0;
+		gNext[g] = table[bucket] - 1;
+		table[bucket] = g + 1;
+		arenaSize += len;
+		return g;
+	}
+
+	private void join(int g, int hid) {
+		if (entries >= eHid.length) {
+			eHid = CoreKit.realloc(eHid, eHid.length * 2);
+			eNext = CoreKit.realloc(eNext, eNext.length * 2);
+		}
+		int e = entries++;
+		eHid[e] = hid;
+		eNext[e] = -1;
+		if (gTail[g] < 0) gHead[g] = e;
+		else eNext[gTail[g]] = e;
+		gTail[g] = e;
+		gCount[g]++;
+	}
+
+	/**
+	 * queue a message, data will be copied if it can't be merged
+	 * @param hid user hyper identity
+	 * @param lparam lparam of ITMC_DATA (buffer limit)
+	 * @param data payload
+	 * @param off offset
+	 * @param len size
+	 */
+	public void add(int hid, int lparam, byte[] data, int off, int len) {
+		int h = hash(data, off, len, lparam);
+		int slot = hid & 0xffff;
+		int last = -1;
+		if (slotStamp[slot] == stamp && slotHid[slot] == hid) {
+			last = slotGroup[slot];
+		}
+		int g = table[h & (TABLE_SIZE - 1)] - 1;
+		for (; g > last; g = gNext[g]) {
+			if (gHash[g] == h && gLen[g] == len && gParam[g] == lparam) {
+				if (equals(g, data, off, len)) break;
+			}
+		}
+		if (g <= last) {
+			g = newGroup(h, lparam, data, off, len);
+		}	else {
+			merged++;
+		}
+		join(g, hid);
+		slotStamp[slot] = stamp;
+		slotHid[slot] = hid;
+		slotGroup[slot] = g;
+	}
+
+	/**
+	 * how many messages are queued
+	 */
+	public int size() {
+		return entries;
+	}
+
+	/**
+	 * how many bytes of payload are queued
+	 */
+	public int bytes() {
+		return arenaSize;
+	}
+
+	/**
+	 * how many messages have been merged into an existing group since created
+	 */
+	public long merged() {
+		return merged;
+	}
+
+	/**
+	 * emit all the queued messages in order and clear the batch
+	 * @param output where to emit
+	 * @return true for success, false if any output failed
+	 */
+	public boolean commit(Output output) {
+		boolean hr = true;
+		for (int g = 0; g < groups; g++) {
+			int count = gCount[g];
+			boolean ok = false;
+			if (count == 1) {
+				ok = output.single(eHid[gHead[g]], gParam[g], arena, gOff[g], gLen[g]);
+			}	else {
+				if (count > hids.length) {
+					hids = new int[count * 2];
+				}
+				int i = 0;
+				for (int e = gHead[g]; e >= 0; e = eNext[e]) {
+					hids[i++] = eHid[e];
+				}
+				ok = output.multiple(hids, count, gParam[g], arena, gOff[g], gLen[g]);
+			}
+			if (!ok) hr = false;
+		}
+		clear();
+		return hr;
+	}
+
+	/**
+	 * discard all the queued messages
+	 */
+	public void clear() {
+		if (groups > 0) {
+			Arrays.fill(table, 0);
+		}
+		groups = 0;
+		entries = 0;
+		arenaSize = 0;
+		stamp++;
+		if (stamp == 0) {
+			Arrays.fill(slotStamp, 0);
+			stamp = 1;
+		}
+	}
+}
@@ -0,0 +1,327 @@
+package asclib.net;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import asclib.net.ChannelInst;
+import asclib.net.ChannelLib;
+import asclib.net.ChannelMsg;
+import asclib.net.ChannelSource;
+
+
+/**
+ * Several channels (or several transmod instances) attached in one JVM.
+ * Each connection has its own reader thread, events of all connections
+ * are merged into one queue and can be read by read() or dispatched by
+ * {@link asclib.net.ChannelDispatcher ChannelDispatcher}. Commands to a
+ * user are routed to the connection which received its ITMT_NEW, and
+ * channel() traffic is balanced between connections.
+ *
+ * NOTE: hids must be unique among the attached connections, which is
+ * always true for channels of the same transmod.
+ */
+public class ChannelCluster implements ChannelSource {
+
+	private static final ChannelMsg STOP = new ChannelMsg(-1, -1, -1);
+
+	private ArrayList<ChannelLib> libs = new ArrayList<ChannelLib>();
+	private ArrayList<Thread> readers = new ArrayList<Thread>();
+	private ConcurrentHashMap<Integer, ChannelLib> owners = new ConcurrentHashMap<Integer, ChannelLib>();
+	private LinkedBlockingQueue<ChannelMsg> events = null;
+	private AtomicInteger alive = new AtomicInteger(0);
+	private AtomicInteger balance = new AtomicInteger(0);
+	private volatile ChannelLib[] active = new ChannelLib[0];
+	private int[][] split = new int[0][];
+	private int[] counts = new int[0];
+	private boolean needflush = true;
+	private boolean aggregate = false;
+	private int xormask = 0;
+
+	/**
+	 * Create cluster
+	 * @param capacity capacity of the event queue, readers block if full
+	 */
+	public ChannelCluster(int capacity) {
+		if (capacity <= 0) capacity = Integer.MAX_VALUE;
+		events = new LinkedBlockingQueue<ChannelMsg>(capacity);
+	}
+
+	public ChannelCluster() {
+		this(0x10000);
+	}
+
+	/**
+	 * Login transmod and add a new connection to the cluster
+	 * @param ip transmod ip
+	 * @param port transmod port
+	 * @param channel which channel do you want to register, 0xffff to let transmod allocate
+	 * @param header header format (0-14)
+	 * @param timeout connection time out (in seconds)
+	 * @return index of the connection, -1 for error
+	 */
+	public synchronized int attach(String ip, int port, int channel, int header, int timeout) {
+		final ChannelLib lib = new ChannelLib();
+		if (lib.attach(ip, port, channel, header, timeout) == false) {
+			return -1;
+		}
+		// settings made before this connection joined
+		lib.setFlushMode(needflush);
+		lib.setAggregate(aggregate);
+		lib.setXorMask(xormask);
+		int index = libs.size();
+		libs.add(lib);
+		active = libs.toArray(new ChannelLib[libs.size()]);
+		alive.incrementAndGet();
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				readLoop(lib);
+			}
+		}, "ChannelCluster-" + index);
+		readers.add(reader);
+		reader.start();
+		return index;
+	}
+
+	public int attach(String ip, int port, int channel, int header) {
+		return attach(ip, port, channel, header, 15);
+	}
+
+	private void put(ChannelMsg msg) {
+		while (true) {
+			try {
+				events.put(msg);
+				break;
+			}	catch (InterruptedException e) {
+			}
+		}
+	}
+
+	private void readLoop(ChannelLib lib) {
+		while (true) {
+			ChannelMsg msg = lib.read();
+			if (msg == null) break;
+			if (msg.event == ChannelInst.ITMT_NEW) {
+				owners.put(msg.wparam, lib);
+			}
+			put(msg);
+		}
+		if (alive.decrementAndGet() == 0) {
+			put(STOP);
+		}
+	}
+
+	/**
+	 * Read event from any connection. invoking this method may block if there is no event.
+	 * @return event, or null if all the connections are closed
+	 */
+	@Override
+	public ChannelMsg read() {
+		if (alive.get() == 0 && events.isEmpty()) {
+			return null;
+		}
+		ChannelMsg msg = null;
+		while (msg == null) {
+			try {
+				msg = events.take();
+			}	catch (InterruptedException e) {
+			}
+		}
+		if (msg == STOP) {
+			put(STOP);
+			return null;
+		}
+		if (msg.event == ChannelInst.ITMT_LEAVE) {
+			owners.remove(msg.wparam);
+		}
+		return msg;
+	}
+
+	/**
+	 * quit all the connections
+	 */
+	@Override
+	public synchronized void quit() {
+		for (ChannelLib lib : libs) {
+			lib.quit();
+		}
+	}
+
+	/**
+	 * get the connection which owns the user
+	 * @param hid user hyper identity
+	 * @return owner connection, or a connection chosen by hid if unknown
+	 */
+	public ChannelLib owner(int hid) {
+		ChannelLib lib = owners.get(hid);
+		if (lib == null) {
+			ChannelLib[] libs = active;
+			if (libs.length == 0) return null;
+			lib = libs[(hid & 0x7fffffff) % libs.length];
+		}
+		return lib;
+	}
+
+	/**
+	 * get connection by index
+	 * @param index index returned by attach
+	 * @return ChannelLib
+	 */
+	public ChannelLib get(int index) {
+		return active[index];
+	}
+
+	/**
+	 * get how many connections
+	 * @return connection count
+	 */
+	public int size() {
+		return active.length;
+	}
+
+	public boolean send(int hid, byte[] data, int off, int len, int limit, boolean useudp) {
+		ChannelLib lib = owner(hid);
+		if (lib == null) return false;
+		return lib.send(hid, data, off, len, limit, useudp);
+	}
+
+	public boolean send(int hid, byte[] data, int limit) {
+		ChannelLib lib = owner(hid);
+		if (lib == null) return false;
+		return lib.send(hid, data, limit);
+	}
+
+	public boolean send(int hid, byte[] data) {
+		ChannelLib lib = owner(hid);
+		if (lib == null) return false;
+		return lib.send(hid, data);
+	}
+
+	public boolean close(int hid, int code) {
+		ChannelLib lib = owner(hid);
+		if (lib == null) return false;
+		return lib.close(hid, code);
+	}
+
+	public boolean close(int hid) {
+		return close(hid, 8123);
+	}
+
+	public boolean setTag(int hid, int tag) {
+		ChannelLib lib = owner(hid);
+		if (lib == null) return false;
+		return lib.setTag(hid, tag);
+	}
+
+	public int getTag(int hid) {
+		ChannelLib lib = owner(hid);
+		if (lib == null) return -1;
+		return lib.getTag(hid);
+	}
+
+	/**
+	 * send data to many users, hids are split by their owner connections
+	 */
+	public synchronized boolean groupcast(int[] hids, int count, byte[] data, int off, int len, int limit) {
+		ChannelLib[] libs = active;
+		if (libs.length == 0) return false;
+		if (libs.length == 1) {
+			return libs[0].groupcast(hids, count, data, off, len, limit);
+		}
+		if (split.length != libs.length) {
+			split = new int[libs.length][];
+			counts = new int[libs.length];
+		}
+		for (int i = 0; i < libs.length; i++) {
+			if (split[i] == null || split[i].length < count) {
+				split[i] = new int[count];
+			}
+			counts[i] = 0;
+		}
+		for (int i = 0; i < count; i++) {
+			ChannelLib lib = owner(hids[i]);
+			for (int k = 0; k < libs.length; k++) {
+				if (libs[k] == lib) {
+					split[k][counts[k]++] = hids[i];
+					break;
+				}
+			}
+		}
+		boolean hr = true;
+		for (int i = 0; i < libs.length; i++) {
+			if (counts[i] > 0) {
+				if (!libs[i].groupcast(split[i], counts[i], data, off, len, limit)) {
+					hr = false;
+				}
+			}
+		}
+		return hr;
+	}
+
+	public boolean groupcast(int[] hids, int count, byte[] data) {
+		return groupcast(hids, count, data, 0, (data == null)? 0 : data.length, 0);
+	}
+
+	/**
+	 * send data to another channel, balanced between connections
+	 */
+	public boolean channel(int ch, byte[] data, int off, int len) {
+		ChannelLib[] libs = active;
+		if (libs.length == 0) return false;
+		int index = (balance.getAndIncrement() & 0x7fffffff) % libs.length;
+		return libs[index].channel(ch, data, off, len);
+	}
+
+	public boolean channel(int ch, byte[] data) {
+		return channel(ch, data, 0, (data == null)? 0 : data.length);
+	}
+
+	public void flush() {
+		ChannelLib[] libs = active;
+		for (int i = 0; i < libs.length; i++) {
+			libs[i].flush();
+		}
+	}
+
+	public synchronized void setFlushMode(boolean needflush) {
+		this.needflush = needflush;
+		ChannelLib[] libs = active;
+		for (int i = 0; i < libs.length; i++) {
+			libs[i].setFlushMode(needflush);
+		}
+	}
+
+	public synchronized void setAggregate(boolean enable) {
+		this.aggregate = enable;
+		ChannelLib[] libs = active;
+		for (int i = 0; i < libs.length; i++) {
+			libs[i].setAggregate(enable);
+		}
+	}
+
+	public synchronized void setXorMask(int mask) {
+		this.xormask = mask;
+		ChannelLib[] libs = active;
+		for (int i = 0; i < libs.length; i++) {
+			libs[i].setXorMask(mask);
+		}
+	}
+
+	/**
+	 * wait until all the reader threads exit
+	 */
+	public void join() {
+		Thread[] threads = null;
+		synchronized (this) {
+			threads = readers.toArray(new Thread[readers.size()]);
+		}
+		for (int i = 0; i < threads.length; i++) {
+			try {
+				threads[i].join();
+			}	catch (InterruptedException e) {
+			}
+		}
+	}
+}
@@ -0,0 +1,228 @@
+package asclib.net;
+
+import java.io.PrintStream;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import asclib.net.ChannelInst;
+import asclib.net.ChannelMsg;
+import asclib.net.ChannelSource;
+
+
+/**
+ * Multi-threaded event dispatcher for ChannelLib or ChannelCluster. One
+ * reader thread decodes events and routes them to N worker queues by the hash of hid,
+ * so events of the same user (ITMT_NEW, ITMT_DATA, ITMT_LEAVE) are always
+ * handled in order by the same worker, while different users run in
+ * parallel. Events without a hid (ITMT_CHANNEL, ITMT_TIMER, ...) are
+ * handled by shard 0.
+ */
+public class ChannelDispatcher {
+
+	/**
+	 * Handler of dispatched events, invoked from worker threads
+	 */
+	public static abstract class Handler {
+		/**
+		 * invoked when an event is dispatched to a worker
+		 * @param shard index of the worker thread (0 to N-1)
+		 * @param msg event (see ITMT_XX in {@link asclib.net.ChannelInst ChannelInst})
+		 */
+		public abstract void OnEvent(int shard, ChannelMsg msg);
+
+		/**
+		 * invoked in each worker thread before it exits
+		 * @param shard index of the worker thread
+		 */
+		public void OnExit(int shard) {}
+	}
+
+	private static final ChannelMsg STOP = new ChannelMsg(-1, -1, -1);
+
+	private ChannelSource lib = null;
+	private Handler handler = null;
+	private Thread reader = null;
+	private Thread[] workers = null;
+	private LinkedBlockingQueue<ChannelMsg>[] queues = null;
+	private volatile boolean running = false;
+	private PrintStream stderr = null;
+
+	/**
+	 * Create dispatcher
+	 * @param lib ChannelLib or ChannelCluster which has attached to transmod
+	 * @param nThreads how many worker threads
+	 * @param capacity queue capacity of each worker, reader blocks if full
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public ChannelDispatcher(ChannelSource lib, int nThreads, int capacity) {
+		if (nThreads <= 0) nThreads = 1;
+		if (capacity <= 0) capacity = Integer.MAX_VALUE;
+		this.lib = lib;
+		queues = new LinkedBlockingQueue[nThreads];
+		for (int i = 0; i < nThreads; i++) {
+			queues[i] = new LinkedBlockingQueue<ChannelMsg>(capacity);
+		}
+	}
+
+	/**
+	 * Create dispatcher with 64K queue capacity per worker
+	 * @param lib ChannelLib or ChannelCluster which has attached to transmod
+	 * @param nThreads how many worker threads
+	 */
+	public ChannelDispatcher(ChannelSource lib, int nThreads) {
+		this(lib, nThreads, 0x10000);
+	}
+
+	/**
+	 * calculate which worker will handle the given hid
+	 * @param hid user hyper identity
+	 * @return shard index
+	 */
+	public int shard(int hid) {
+		int h = hid * 0x9e3779b1;
+		h ^= (h >>> 16);
+		return (h & 0x7fffffff) % queues.length;
+	}
+
+	/**
+	 * get how many workers
+	 * @return worker count
+	 */
+	public int size() {
+		return queues.length;
+	}
+
+	/**
+	 * get how many events are waiting in the queue of the worker
+	 * @param shard worker index
+	 * @return event count
+	 */
+	public int pending(int shard) {
+		return queues[shard].size();
+	}
+
+	private int route(ChannelMsg msg) {
+		switch (msg.event) {
+		case ChannelInst.ITMT_NEW:
+		case ChannelInst.ITMT_LEAVE:
+		case ChannelInst.ITMT_DATA:
+		case ChannelInst.ITMT_UNRDAT:
+			return shard(msg.wparam);
+		}
+		return 0;
+	}
+
+	private void put(int shard, ChannelMsg msg) {
+		while (true) {
+			try {
+				queues[shard].put(msg);
+				break;
+			}	catch (InterruptedException e) {
+			}
+		}
+	}
+
+	private void readLoop() {
+		while (running) {
+			ChannelMsg msg = lib.read();
+			if (msg == null) break;
+			put(route(msg), msg);
+		}
+		running = false;
+		for (int i = 0; i < queues.length; i++) {
+			put(i, STOP);
+		}
+	}
+
+	private void workLoop(int shard) {
+		LinkedBlockingQueue<ChannelMsg> queue = queues[shard];
+		while (true) {
+			ChannelMsg msg = null;
+			try {
+				msg = queue.take();
+			}	catch (InterruptedException e) {
+				continue;
+			}
+			if (msg == STOP) break;
+			try {
+				handler.OnEvent(shard, msg);
+			}	catch (java.lang.Throwable e) {
+				if (stderr != null) e.printStackTrace(stderr);
+				else e.printStackTrace();
+			}
+		}
+		try {
+			handler.OnExit(shard);
+		}	catch (java.lang.Throwable e) {
+			if (stderr != null) e.printStackTrace(stderr);
+			else e.printStackTrace();
+		}
+	}
+
+	/**
+	 * start reader and worker threads
+	 * @param handler event handler
+	 * @return true for success, false if already started
+	 */
+	public synchronized boolean start(Handler handler) {
+		if (reader != null) return false;
+		this.handler = handler;
+		this.running = true;
+		workers = new Thread[queues.length];
+		for (int i = 0; i < queues.length; i++) {
+			final int shard = i;
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					workLoop(shard);
+				}
+			}, "ChannelDispatcher-" + i);
+			workers[i].start();
+		}
+		reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				readLoop();
+			}
+		}, "ChannelDispatcher-reader");
+		reader.start();
+		return true;
+	}
+
+	/**
+	 * quit transmod, the reader stops and workers exit after the
+	 * remaining events have been handled.
+	 */
+	public void stop() {
+		running = false;
+		lib.quit();
+	}
+
+	/**
+	 * wait until reader and all workers exit
+	 */
+	public void join() {
+		Thread r = reader;
+		Thread[] w = workers;
+		try {
+			if (r != null) r.join();
+			if (w != null) {
+				for (int i = 0; i < w.length; i++) {
+					w[i].join();
+				}
+			}
+		}	catch (InterruptedException e) {
+		}
+		synchronized (this) {
+			reader = null;
+			workers = null;
+		}
+	}
+
+	/**
+	 * set stderr to print stack trace
+	 * @param stderr
+	 */
+	public void setErr(PrintStream stderr) {
+		this.stderr = stderr;
+	}
+}
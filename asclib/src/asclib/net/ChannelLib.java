@@ -3,13 +3,15 @@ package asclib.net;
 import asclib.net.ChannelInst;
 import asclib.net.ChannelMsg;
 import asclib.net.ChannelSocket;
+import asclib.net.ChannelSource;
 
 
-public class ChannelLib {
+public class ChannelLib implements ChannelSource {
 	private ChannelSocket sock = new ChannelSocket();
 	private int[] users = new int[0x10000];
 	private int[] tags = new int[0x10000];
 	private boolean readFilter = true;
+	private final Object rlock = new Object();
 	
 	public ChannelLib() {
 		reset();
@@ -86,10 +88,17 @@ public class ChannelLib {
 	
 	/**
 	 * Read event from transmod. invoking this method may block if there is no event.
+	 * Writing methods can be called from other threads during reading.
 	 * See ITMT_XX in {@link auxlib.net.ChannelInst ChannelInst} 
 	 * @return a {@link auxlib.net.ChannelMsg ChannelMsg} object consisted of (event, wp, lp, data) 
 	 */
-	public synchronized ChannelMsg read() {
+	public ChannelMsg read() {
+		synchronized (rlock) {
+			return internalRead();
+		}
+	}
+	
+	private ChannelMsg internalRead() {
 		ChannelMsg msg = null;
 		if (readFilter == false) {
 			return sock.read();
@@ -295,10 +304,37 @@ public class ChannelLib {
 		return sock.write(ChannelInst.ITMC_SYSCD, ChannelInst.ITMS_RC4RKEY, hid, key);
 	}
 	
+	/**
+	 * flush output, also commits the aggregated messages of current tick
+	 */
 	public void flush() {
 		sock.flush();
 	}
 	
+	/**
+	 * Enable tick-based send aggregation: send() to different users in one
+	 * tick are queued and identical payloads are merged into one groupcast
+	 * (ITMC_BROADCAST). Queued messages are committed by flush() (call it at
+	 * the end of every tick), read(), or any other command.
+	 * @param enable true to enable, false to disable
+	 * @param limit commit automatically if queued bytes exceed limit, 0 for default (512KB)
+	 */
+	public void setAggregate(boolean enable, int limit) {
+		sock.setAggregate(enable, limit);
+	}
+	
+	public void setAggregate(boolean enable) {
+		sock.setAggregate(enable, 0);
+	}
+	
+	/**
+	 * get how many messages have been merged by aggregation
+	 * @return message count
+	 */
+	public long getAggregateMerged() {
+		return sock.getAggregateMerged();
+	}
+	
 	public void setFlushMode(boolean needflush) {
 		sock.setFlushMode(needflush);
 	}
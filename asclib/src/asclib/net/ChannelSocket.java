@@ -10,15 +10,29 @@ public class ChannelSocket {
 	private int channel = 0;
 	private byte xormask = 0;
 	private boolean needflush = true;
-	private boolean dirty = false;
+	private volatile boolean dirty = false;
 	private byte[] sndbuf = new byte[1024 * 1024 + 12];
 	private byte[] rcvbuf = new byte[1024 * 1024 + 12];
-	private byte[] caster = new byte[1024 * 1024 + 12];
+	private byte[] caster = new byte[4096 * 4];
 	private byte[] sndhdr = new byte[10];	
 	private static final byte[] EMPTY = new byte[0];
 	private byte[][] vector = { EMPTY, EMPTY, EMPTY, EMPTY };
 	private int[] offs = { 0, 0, 0 };
 	private int[] lens = { 0, 0, 0 };
+	private final Object rlock = new Object();
+	private ChannelBatch batch = null;
+	private int batchLimit = 512 * 1024;
+	
+	private final ChannelBatch.Output batchOutput = new ChannelBatch.Output() {
+		@Override
+		public boolean single(int hid, int lparam, byte[] data, int off, int len) {
+			return output(ChannelInst.ITMC_DATA, hid, lparam, data, off, len, false);
+		}
+		@Override
+		public boolean multiple(int[] hids, int count, int lparam, byte[] data, int off, int len) {
+			return broadcast(hids, count, lparam, data, off, len);
+		}
+	};
 	
 	public ChannelSocket() {
 	}
@@ -35,7 +49,31 @@ public class ChannelSocket {
 		}
 	}
 	
+	private static void XOR(byte[] src, int soff, byte[] dst, int doff, int len, byte mask) {
+		for (; len > 0; soff++, doff++, len--) {
+			dst[doff] = (byte)(src[soff] ^ mask);
+		}
+	}
+	
 	public synchronized boolean write(int event, int wparam, int lparam, byte[] data, int off, int len, boolean flush) {
+		if (batch != null) {
+			if (event == ChannelInst.ITMC_DATA) {
+				if (data == null) data = EMPTY;
+				batch.add(wparam, lparam, data, off, len);
+				dirty = true;
+				if (batch.bytes() >= batchLimit) {
+					commit();
+				}
+				return true;
+			}
+			if (batch.size() > 0) {
+				commit();
+			}
+		}
+		return output(event, wparam, lparam, data, off, len, flush);
+	}
+	
+	private boolean output(int event, int wparam, int lparam, byte[] data, int off, int len, boolean flush) {
 		if (data == null) data = EMPTY;
 		boolean hr = false;
 		CoreEncode.encode16i_lsb(sndhdr, 0, (short)(event & 0xffff));
@@ -57,21 +95,20 @@ public class ChannelSocket {
 			vector[0] = sndhdr;
 			vector[1] = EMPTY;
 			offs[0] = 0;
-			offs[1] = off;
+			offs[1] = 0;
 			lens[0] = 10;
 			lens[1] = len;
 			if (data != null && len > 0) {
-				System.arraycopy(data, 0, cache, 0, len);
-				if (xormask != 0) {
-					if (event == ChannelInst.ITMC_DATA) {
-						XOR(cache, 0, len, xormask);
-					}	
-					else if (event == ChannelInst.ITMC_BROADCAST) {
-						int size = wparam * 4;
-						if (size < data.length) {
-							XOR(cache, 0, len - size, xormask);
-						}
-					}
+				if (event == ChannelInst.ITMC_DATA) {
+					XOR(data, off, cache, 0, len, xormask);
+				}
+				else if (event == ChannelInst.ITMC_BROADCAST && wparam * 4 < len) {
+					int size = len - wparam * 4;
+					XOR(data, off, cache, 0, size, xormask);
+					System.arraycopy(data, off + size, cache, size, wparam * 4);
+				}
+				else {
+					System.arraycopy(data, off, cache, 0, len);
 				}
 				vector[1] = cache;
 			}
@@ -102,15 +139,50 @@ public class ChannelSocket {
 	}
 	
 	public synchronized void flush() {
+		if (batch != null && batch.size() > 0) {
+			commit();
+		}
 		sock.flush();
 		dirty = false;
 	}
 	
-	public synchronized ChannelMsg read() {
+	private boolean commit() {
+		return batch.commit(batchOutput);
+	}
+	
+	/**
+	 * enable or disable send aggregation. When enabled, ITMC_DATA messages
+	 * are queued until flush() or any other command, identical payloads
+	 * are merged into one ITMC_BROADCAST.
+	 * @param enable true to enable
+	 * @param limit commit automatically when queued payload exceeds limit bytes
+	 */
+	public synchronized void setAggregate(boolean enable, int limit) {
+		if (batch != null && batch.size() > 0) {
+			commit();
+		}
+		batch = enable? new ChannelBatch() : null;
+		batchLimit = (limit > 0)? limit : (512 * 1024);
+	}
+	
+	public synchronized long getAggregateMerged() {
+		return (batch != null)? batch.merged() : 0;
+	}
+	
+	/**
+	 * read event from transmod, reading can run in a different thread from writing.
+	 * @return event or null for error
+	 */
+	public ChannelMsg read() {
 		if (dirty) {
-			sock.flush();
-			dirty = false;
+			flush();
 		}
+		synchronized (rlock) {
+			return internalRead();
+		}
+	}
+	
+	private ChannelMsg internalRead() {
 		int needed = sock.read(null);
 		int length = needed - 10;
 		byte[] cache = rcvbuf;
@@ -205,28 +277,52 @@ public class ChannelSocket {
 	}
 	
 	public synchronized boolean groupcast(int[] hids, int count, byte[] data, int off, int len, int limit) {
-		int needed = count * 4 + len;
-		byte[] cache = caster;
-		if (needed > cache.length) {
-			cache = new byte[needed];
+		int lparam = (limit <= 0)? 0 : (0x40000000 | limit);
+		if (batch != null && batch.size() > 0) {
+			commit();
 		}
-		/*
-		for (int i = 0; i < count; i++) {
-			CoreEncode.encode32i_lsb(cache, i * 4, hids[i]);
+		boolean hr = broadcast(hids, count, lparam, data, off, len);
+		if (hr && needflush) {
+			flush();
 		}
-		if (data != null) {
-			System.arraycopy(data, off, cache, count * 4, len);
+		return hr;
+	}
+	
+	private boolean broadcast(int[] hids, int count, int lparam, byte[] data, int off, int len) {
+		if (data == null) {
+			data = EMPTY;
+			len = 0;
 		}
-		*/
-		if (data != null && len > 0) {
-			System.arraycopy(data, off, cache, 0, len);
+		if (count * 4 > caster.length) {
+			caster = new byte[count * 8];
 		}
 		for (int i = 0; i < count; i++) {
-			CoreEncode.encode32i_lsb(cache, len + i * 4, hids[i]);
+			CoreEncode.encode32i_lsb(caster, i * 4, hids[i]);
+		}
+		CoreEncode.encode16i_lsb(sndhdr, 0, (short)ChannelInst.ITMC_BROADCAST);
+		CoreEncode.encode32i_lsb(sndhdr, 2, count);
+		CoreEncode.encode32i_lsb(sndhdr, 6, lparam);
+		vector[0] = sndhdr;
+		vector[1] = data;
+		vector[2] = caster;
+		offs[0] = 0;
+		offs[1] = off;
+		offs[2] = 0;
+		lens[0] = 10;
+		lens[1] = len;
+		lens[2] = count * 4;
+		if (xormask != 0 && len > 0) {
+			byte[] cache = (len > sndbuf.length)? new byte[len] : sndbuf;
+			XOR(data, off, cache, 0, len, xormask);
+			vector[1] = cache;
+			offs[1] = 0;
+		}
+		boolean hr = sock.write(vector, offs, lens, 3, 0);
+		vector[1] = EMPTY;
+		vector[2] = EMPTY;
+		if (hr) {
+			dirty = true;
 		}
-		int lparam = (limit <= 0)? 0 : (0x40000000 | limit);
-		boolean hr = write(ChannelInst.ITMC_BROADCAST, count, lparam, cache, 0, needed, needflush);
-		cache = null;
 		return hr;
 	}
 	
@@ -0,0 +1,19 @@
+package asclib.net;
+
+import asclib.net.ChannelMsg;
+
+/**
+ * Source of transmod events, implemented by ChannelLib and ChannelCluster
+ */
+public interface ChannelSource {
+	/**
+	 * Read event from transmod, invoking this method may block if there is no event.
+	 * @return event or null if connection is closed
+	 */
+	ChannelMsg read();
+	
+	/**
+	 * quit transmod
+	 */
+	void quit();
+}
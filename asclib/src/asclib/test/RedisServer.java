@@ -0,0 +1,472 @@
+package asclib.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import asclib.core.CoreRedis;
+
+
+/**
+ * In-process RESP server for benchmarking CoreRedis/AsyncRedis without a
+ * real redis. Keeps an in-memory map and supports PING, ECHO, GET, SET,
+ * MGET, MSET, DEL, EXISTS, INCR, RPUSH, LRANGE, HSET, HGET, HGETALL,
+ * PUBLISH, SUBSCRIBE, UNSUBSCRIBE and CLIENT ID. Every read batch can be
+ * delayed to emulate network latency, and bulk values in replies can be
+ * resized to a fixed length.
+ */
+public class RedisServer {
+
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+	/**
+	 * A connected client
+	 */
+	private class Session {
+		private Socket sock = null;
+		private InputStream is = null;
+		private OutputStream os = null;
+		private long id = 0;
+		private byte[] input = new byte[0x10000];
+		private CoreRedis parser = new CoreRedis();
+		private CoreRedis.Encoder output = new CoreRedis.Encoder(0x10000);
+		private HashSet<String> channels = new HashSet<String>();
+
+		public Session(Socket sock, long id) throws IOException {
+			this.sock = sock;
+			this.id = id;
+			this.is = sock.getInputStream();
+			this.os = sock.getOutputStream();
+			sock.setTcpNoDelay(true);
+		}
+
+		public void close() {
+			try {
+				sock.close();
+			}	catch (IOException e) {
+			}
+		}
+
+		// write pushed message, output of the session itself is only
+		// touched by its own thread, writing to os is locked
+		public synchronized void push(CoreRedis.Encoder message) {
+			try {
+				os.write(message.array(), 0, message.size());
+				os.flush();
+			}	catch (IOException e) {
+				close();
+			}
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					int n = is.read(input, 0, input.length);
+					if (n < 0) break;
+					parser.feed(input, 0, n);
+					boolean quit = false;
+					output.reset();
+					while (true) {
+						CoreRedis.Element e = parser.poll();
+						if (e == null) break;
+						if (!handle(e)) {
+							quit = true;
+							break;
+						}
+						commands.incrementAndGet();
+					}
+					if (latency > 0) {
+						LockSupport.parkNanos(latency * 1000L);
+					}
+					synchronized (this) {
+						os.write(output.array(), 0, output.size());
+						os.flush();
+					}
+					if (quit) break;
+				}
+			}	catch (IOException e) {
+			}
+			synchronized (subscribers) {
+				for (String channel : channels) {
+					ArrayList<Session> list = subscribers.get(channel);
+					if (list != null) list.remove(this);
+				}
+			}
+			synchronized (sessions) {
+				sessions.remove(this);
+			}
+			close();
+		}
+
+		private void bulk(byte[] value) {
+			if (value == null) {
+				output.nil();
+			}
+			else if (size > 0) {
+				output.bulk(resize(value));
+			}
+			else {
+				output.bulk(value);
+			}
+		}
+
+		private void wrongType() {
+			output.line('-', "WRONGTYPE Operation against a key holding the wrong kind of value");
+		}
+
+		private void arity(String cmd) {
+			output.line('-', "ERR wrong number of arguments for '" + cmd.toLowerCase() + "' command");
+		}
+
+		// handle a command, returns false to close the connection
+		private boolean handle(CoreRedis.Element e) {
+			if (e.cmd != '*' || e.child == null || e.child.length == 0) {
+				output.line('-', "ERR Protocol error");
+				return true;
+			}
+			int argc = e.child.length;
+			byte[][] argv = new byte[argc][];
+			for (int i = 0; i < argc; i++) {
+				argv[i] = (e.child[i].data != null)? e.child[i].data : new byte[0];
+			}
+			String cmd = new String(argv[0], LATIN1).toUpperCase();
+			if (cmd.equals("QUIT")) {
+				output.line('+', "OK");
+				return false;
+			}
+			if (cmd.equals("PING")) {
+				if (argc > 1) output.bulk(argv[1]);
+				else output.line('+', "PONG");
+			}
+			else if (cmd.equals("ECHO") && argc == 2) {
+				output.bulk(argv[1]);
+			}
+			else if (cmd.equals("CLIENT") && argc == 2 && new String(argv[1], LATIN1).equalsIgnoreCase("ID")) {
+				output.integer(id);
+			}
+			else if (cmd.equals("SUBSCRIBE") && argc >= 2) {
+				for (int i = 1; i < argc; i++) {
+					String channel = new String(argv[i], LATIN1);
+					channels.add(channel);
+					synchronized (subscribers) {
+						ArrayList<Session> list = subscribers.get(channel);
+						if (list == null) {
+							list = new ArrayList<Session>();
+							subscribers.put(channel, list);
+						}
+						if (!list.contains(this)) list.add(this);
+					}
+					output.array(3).bulk("subscribe").bulk(argv[i]).integer(channels.size());
+				}
+			}
+			else if (cmd.equals("UNSUBSCRIBE")) {
+				ArrayList<String> names = new ArrayList<String>();
+				if (argc == 1) names.addAll(channels);
+				for (int i = 1; i < argc; i++) names.add(new String(argv[i], LATIN1));
+				for (String channel : names) {
+					channels.remove(channel);
+					synchronized (subscribers) {
+						ArrayList<Session> list = subscribers.get(channel);
+						if (list != null) list.remove(this);
+					}
+					output.array(3).bulk("unsubscribe").bulk(channel.getBytes(LATIN1)).integer(channels.size());
+				}
+			}
+			else if (cmd.equals("PUBLISH") && argc == 3) {
+				output.integer(publish(new String(argv[1], LATIN1), argv[1], argv[2]));
+			}
+			else {
+				synchronized (store) {
+					execute(cmd, argc, argv);
+				}
+			}
+			return true;
+		}
+
+		@SuppressWarnings("unchecked")
+		private void execute(String cmd, int argc, byte[][] argv) {
+			String key = (argc > 1)? new String(argv[1], LATIN1) : null;
+			Object value = (key != null)? store.get(key) : null;
+			if (cmd.equals("GET")) {
+				if (argc != 2) arity(cmd);
+				else if (value != null && !(value instanceof byte[])) wrongType();
+				else bulk((byte[])value);
+			}
+			else if (cmd.equals("SET")) {
+				if (argc < 3) arity(cmd);
+				else {
+					store.put(key, argv[2]);
+					output.line('+', "OK");
+				}
+			}
+			else if (cmd.equals("MGET")) {
+				output.array(argc - 1);
+				for (int i = 1; i < argc; i++) {
+					Object v = store.get(new String(argv[i], LATIN1));
+					bulk((v instanceof byte[])? (byte[])v : null);
+				}
+			}
+			else if (cmd.equals("MSET")) {
+				if (argc < 3 || (argc & 1) == 0) arity(cmd);
+				else {
+					for (int i = 1; i + 1 < argc; i += 2) {
+						store.put(new String(argv[i], LATIN1), argv[i + 1]);
+					}
+					output.line('+', "OK");
+				}
+			}
+			else if (cmd.equals("DEL") || cmd.equals("EXISTS")) {
+				int count = 0;
+				boolean del = cmd.equals("DEL");
+				for (int i = 1; i < argc; i++) {
+					String k = new String(argv[i], LATIN1);
+					if (store.containsKey(k)) {
+						count++;
+						if (del) store.remove(k);
+					}
+				}
+				output.integer(count);
+			}
+			else if (cmd.equals("INCR")) {
+				if (argc != 2) arity(cmd);
+				else if (value != null && !(value instanceof byte[])) wrongType();
+				else {
+					long x = 0;
+					try {
+						if (value != null) x = Long.parseLong(new String((byte[])value, LATIN1));
+					}	catch (NumberFormatException e) {
+						output.line('-', "ERR value is not an integer or out of range");
+						return;
+					}
+					x++;
+					store.put(key, String.valueOf(x).getBytes(LATIN1));
+					output.integer(x);
+				}
+			}
+			else if (cmd.equals("RPUSH")) {
+				if (argc < 3) arity(cmd);
+				else if (value != null && !(value instanceof ArrayList)) wrongType();
+				else {
+					ArrayList<byte[]> list = (ArrayList<byte[]>)value;
+					if (list == null) {
+						list = new ArrayList<byte[]>();
+						store.put(key, list);
+					}
+					for (int i = 2; i < argc; i++) list.add(argv[i]);
+					output.integer(list.size());
+				}
+			}
+			else if (cmd.equals("LRANGE")) {
+				if (argc != 4) arity(cmd);
+				else if (value != null && !(value instanceof ArrayList)) wrongType();
+				else {
+					ArrayList<byte[]> list = (ArrayList<byte[]>)value;
+					int n = (list == null)? 0 : list.size();
+					int start = index(argv[2], n);
+					int stop = index(argv[3], n);
+					if (start < 0) start = 0;
+					if (stop >= n) stop = n - 1;
+					if (start > stop) {
+						output.array(0);
+					}	else {
+						output.array(stop - start + 1);
+						for (int i = start; i <= stop; i++) bulk(list.get(i));
+					}
+				}
+			}
+			else if (cmd.equals("HSET")) {
+				if (argc < 4 || (argc & 1) != 0) arity(cmd);
+				else if (value != null && !(value instanceof LinkedHashMap)) wrongType();
+				else {
+					LinkedHashMap<String, byte[]> hash = (LinkedHashMap<String, byte[]>)value;
+					if (hash == null) {
+						hash = new LinkedHashMap<String, byte[]>();
+						store.put(key, hash);
+					}
+					int count = 0;
+					for (int i = 2; i + 1 < argc; i += 2) {
+						if (hash.put(new String(argv[i], LATIN1), argv[i + 1]) == null) count++;
+					}
+					output.integer(count);
+				}
+			}
+			else if (cmd.equals("HGET")) {
+				if (argc != 3) arity(cmd);
+				else if (value != null && !(value instanceof LinkedHashMap)) wrongType();
+				else {
+					LinkedHashMap<String, byte[]> hash = (LinkedHashMap<String, byte[]>)value;
+					bulk((hash == null)? null : hash.get(new String(argv[2], LATIN1)));
+				}
+			}
+			else if (cmd.equals("HGETALL")) {
+				if (argc != 2) arity(cmd);
+				else if (value != null && !(value instanceof LinkedHashMap)) wrongType();
+				else {
+					LinkedHashMap<String, byte[]> hash = (LinkedHashMap<String, byte[]>)value;
+					int n = (hash == null)? 0 : hash.size();
+					output.array(n * 2);
+					if (hash != null) {
+						for (Map.Entry<String, byte[]> entry : hash.entrySet()) {
+							output.bulk(entry.getKey().getBytes(LATIN1));
+							bulk(entry.getValue());
+						}
+					}
+				}
+			}
+			else {
+				output.line('-', "ERR unknown command '" + cmd.toLowerCase() + "'");
+			}
+		}
+	}
+
+	private ServerSocket server = null;
+	private Thread acceptor = null;
+	private volatile boolean running = false;
+	private volatile int latency = 0;
+	private volatile int size = 0;
+	private HashMap<String, Object> store = new HashMap<String, Object>();
+	private HashMap<String, ArrayList<Session>> subscribers = new HashMap<String, ArrayList<Session>>();
+	private ArrayList<Session> sessions = new ArrayList<Session>();
+	private AtomicLong commands = new AtomicLong(0);
+	private AtomicLong identity = new AtomicLong(0);
+
+	private static int index(byte[] b, int n) {
+		int x = 0;
+		try {
+			x = Integer.parseInt(new String(b, LATIN1));
+		}	catch (NumberFormatException e) {
+		}
+		return (x < 0)? n + x : x;
+	}
+
+	private byte[] resize(byte[] value) {
+		if (value.length == size) return value;
+		byte[] b = new byte[size];
+		for (int i = 0; i < size; i++) {
+			b[i] = (value.length > 0)? value[i % value.length] : (byte)'x';
+		}
+		return b;
+	}
+
+	private int publish(String channel, byte[] name, byte[] data) {
+		Session[] targets = null;
+		synchronized (subscribers) {
+			ArrayList<Session> list = subscribers.get(channel);
+			if (list == null || list.isEmpty()) return 0;
+			targets = list.toArray(new Session[list.size()]);
+		}
+		CoreRedis.Encoder message = new CoreRedis.Encoder(data.length + name.length + 64);
+		message.array(3).bulk("message").bulk(name).bulk(data);
+		for (int i = 0; i < targets.length; i++) {
+			targets[i].push(message);
+		}
+		return targets.length;
+	}
+
+	/**
+	 * start listening on 127.0.0.1
+	 * @param port port, 0 to allocate
+	 * @return listening port
+	 */
+	public int start(int port) throws IOException {
+		server = new ServerSocket(port, 64, InetAddress.getByName("127.0.0.1"));
+		running = true;
+		acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (running) {
+					try {
+						Socket sock = server.accept();
+						final Session session = new Session(sock, identity.incrementAndGet());
+						synchronized (sessions) {
+							sessions.add(session);
+						}
+						Thread t = new Thread(new Runnable() {
+							@Override
+							public void run() {
+								session.run();
+							}
+						}, "RedisSession");
+						t.setDaemon(true);
+						t.start();
+					}	catch (IOException e) {
+						break;
+					}
+				}
+			}
+		}, "RedisServer");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		return server.getLocalPort();
+	}
+
+	public void stop() {
+		running = false;
+		try {
+			if (server != null) server.close();
+		}	catch (IOException e) {
+		}
+		synchronized (sessions) {
+			for (Session s : sessions) {
+				s.close();
+			}
+			sessions.clear();
+		}
+	}
+
+	/**
+	 * delay replies of every read batch to emulate network latency
+	 * @param micros delay in microseconds, 0 to disable
+	 */
+	public void latency(int micros) {
+		latency = (micros > 0)? micros : 0;
+	}
+
+	/**
+	 * resize every bulk value in replies (repeat or truncate)
+	 * @param bytes value size, 0 to return values as stored
+	 */
+	public void replySize(int bytes) {
+		size = (bytes > 0)? bytes : 0;
+	}
+
+	/**
+	 * get how many commands have been executed
+	 */
+	public long commands() {
+		return commands.get();
+	}
+
+	/**
+	 * clear the in-memory map
+	 */
+	public void flush() {
+		synchronized (store) {
+			store.clear();
+		}
+	}
+
+	/**
+	 * usage: RedisServer [port]
+	 */
+	public static void main(String[] args) throws Exception {
+		int port = (args.length > 0)? Integer.parseInt(args[0]) : 6379;
+		RedisServer server = new RedisServer();
+		port = server.start(port);
+		System.out.println("listening on 127.0.0.1:" + port);
+		while (true) {
+			Thread.sleep(1000);
+		}
+	}
+}
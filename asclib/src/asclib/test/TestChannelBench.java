@@ -0,0 +1,97 @@
+package asclib.test;
+
+import asclib.net.ChannelDispatcher;
+import asclib.net.ChannelInst;
+import asclib.net.ChannelLib;
+import asclib.net.ChannelMsg;
+
+
+/**
+ * Benchmark of the channel path against the in-process TransmodServer:
+ * virtual users send ITMT_DATA, the channel echoes every message back,
+ * reports events/sec and round trip latency percentiles.
+ * group makes that many consecutive users send the same payload, so
+ * the echoes can be merged when aggregate is on (default 16 then).
+ * 
+ * usage: TestChannelBench [users] [rate] [size] [seconds] [threads] [aggregate] [group]
+ */
+public class TestChannelBench {
+
+	private static int arg(String[] args, int index, int value) {
+		return (args.length > index)? Integer.parseInt(args[index]) : value;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int users = arg(args, 0, 1000);
+		int rate = arg(args, 1, 20);
+		int size = arg(args, 2, 64);
+		int seconds = arg(args, 3, 10);
+		int threads = arg(args, 4, 0);
+		boolean aggregate = arg(args, 5, 0) != 0;
+		int group = arg(args, 6, aggregate? 16 : 1);
+
+		TransmodServer server = new TransmodServer(2);
+		int port = server.start(0);
+		final ChannelLib lib = new ChannelLib();
+		if (lib.attach("127.0.0.1", port, 1, 2) == false) {
+			System.out.println("can not attach to emulator");
+			return;
+		}
+		lib.setFlushMode(false);
+		lib.setAggregate(aggregate);
+
+		ChannelDispatcher dispatcher = null;
+		Thread reader = null;
+
+		if (threads > 0) {
+			final ChannelDispatcher d = new ChannelDispatcher(lib, threads);
+			d.start(new ChannelDispatcher.Handler() {
+				@Override
+				public void OnEvent(int shard, ChannelMsg msg) {
+					if (msg.event == ChannelInst.ITMT_DATA) {
+						lib.send(msg.wparam, msg.data);
+						if (d.pending(shard) == 0) lib.flush();
+					}
+				}
+			});
+			dispatcher = d;
+		}	else {
+			reader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (true) {
+						ChannelMsg msg = lib.read();
+						if (msg == null) break;
+						if (msg.event == ChannelInst.ITMT_DATA) {
+							lib.send(msg.wparam, msg.data);
+						}
+					}
+				}
+			});
+			reader.start();
+		}
+
+		System.out.printf("users=%d rate=%d size=%d seconds=%d threads=%d aggregate=%s group=%d\n",
+				users, rate, size, seconds, threads, aggregate, group);
+		long ts = System.nanoTime();
+		long sent = server.simulate(1, users, rate, size, seconds * 1000L, group);
+		double elapsed = (System.nanoTime() - ts) / 1e9;
+		Thread.sleep(500);
+		long received = server.received();
+		TransmodServer.Histogram h = server.latency();
+
+		System.out.printf("sent=%d received=%d commands=%d\n", sent, received, server.commands());
+		System.out.printf("events/sec: %.0f, echoes/sec: %.0f\n", sent / elapsed, received / elapsed);
+		System.out.printf("latency(us): p50=%d p90=%d p99=%d p999=%d max=%d\n",
+				h.percentile(50), h.percentile(90), h.percentile(99), h.percentile(99.9), h.max());
+
+		if (dispatcher != null) {
+			dispatcher.stop();
+			dispatcher.join();
+		}	else {
+			lib.quit();
+			reader.join();
+		}
+		server.stop();
+	}
+}
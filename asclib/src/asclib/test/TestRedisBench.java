@@ -0,0 +1,150 @@
+package asclib.test;
+
+import asclib.core.CoreRedis;
+import asclib.core.CoreRedis.RedisError;
+import asclib.net.AsyncRedis;
+
+
+/**
+ * Pipelined load generator of AsyncRedis against the in-process
+ * RedisServer (or a real redis if host and port are given): every
+ * connection keeps [pipeline] requests in flight, mixing GET and SET
+ * on [keys] keys, reports ops/sec and latency percentiles.
+ *
+ * usage: TestRedisBench [connections] [pipeline] [seconds] [size] [latency] [flat] [host] [port]
+ */
+public class TestRedisBench {
+
+	private static int arg(String[] args, int index, int value) {
+		return (args.length > index)? Integer.parseInt(args[index]) : value;
+	}
+
+	private static TransmodServer.Histogram histogram = new TransmodServer.Histogram();
+	private static long completed = 0;
+	private static long errors = 0;
+
+	private static class Request extends AsyncRedis.FrameReply {
+		long ts = 0;
+		int index = 0;
+
+		@Override
+		public void OnFrame(CoreRedis.Frame frame) {
+			histogram.record(System.nanoTime() - ts);
+			if (frame.isError(0)) errors++;
+			completed++;
+			inflight[index]--;
+		}
+
+		@Override
+		public void OnReply(Object response) {
+			histogram.record(System.nanoTime() - ts);
+			completed++;
+			inflight[index]--;
+		}
+
+		@Override
+		public void OnError(RedisError error) {
+			errors++;
+			completed++;
+			inflight[index]--;
+		}
+	}
+
+	private static int[] inflight = null;
+
+	public static void main(String[] args) throws Exception {
+		int connections = arg(args, 0, 4);
+		int pipeline = arg(args, 1, 64);
+		int seconds = arg(args, 2, 5);
+		int size = arg(args, 3, 64);
+		int latency = arg(args, 4, 0);
+		boolean flat = arg(args, 5, 1) != 0;
+		int keys = 10000;
+
+		RedisServer server = null;
+		String host = "127.0.0.1";
+		int port = 0;
+		if (args.length > 7) {
+			host = args[6];
+			port = Integer.parseInt(args[7]);
+		}	else {
+			server = new RedisServer();
+			server.latency(latency);
+			port = server.start(0);
+		}
+
+		AsyncRedis[] clients = new AsyncRedis[connections];
+		inflight = new int[connections];
+		for (int i = 0; i < connections; i++) {
+			clients[i] = new AsyncRedis();
+			clients[i].flat(flat);
+			clients[i].limit(64 << 20);
+			clients[i].connect(host, port);
+		}
+
+		byte[] value = new byte[size];
+		for (int i = 0; i < size; i++) value[i] = (byte)('a' + (i % 26));
+		byte[][] names = new byte[keys][];
+		for (int i = 0; i < keys; i++) {
+			names[i] = ("key:" + i).getBytes("UTF-8");
+		}
+
+		// preload
+		for (int i = 0; i < keys; i++) {
+			clients[i % connections].begin(3).bulk("SET").bulk(names[i]).bulk(value);
+			clients[i % connections].commit(null);
+		}
+		long deadline = System.currentTimeMillis() + 5000;
+		while (System.currentTimeMillis() < deadline) {
+			int pending = 0;
+			for (int i = 0; i < connections; i++) {
+				clients[i].update();
+				pending += clients[i].pending();
+			}
+			if (pending == 0) break;
+		}
+
+		System.out.printf("connections=%d pipeline=%d seconds=%d size=%d latency=%dus flat=%s\n",
+				connections, pipeline, seconds, size, latency, flat);
+
+		long seed = 0x12345678L;
+		long ts = System.nanoTime();
+		long end = ts + seconds * 1000000000L;
+		long sent = 0;
+		while (System.nanoTime() < end) {
+			for (int i = 0; i < connections; i++) {
+				AsyncRedis client = clients[i];
+				while (inflight[i] < pipeline) {
+					seed = seed * 6364136223846793005L + 1442695040888963407L;
+					int k = (int)((seed >>> 33) % keys);
+					Request request = new Request();
+					request.index = i;
+					request.ts = System.nanoTime();
+					if (((seed >>> 20) & 7) == 0) {
+						client.begin(3).bulk("SET").bulk(names[k]).bulk(value);
+					}	else {
+						client.begin(2).bulk("GET").bulk(names[k]);
+					}
+					client.commit(request);
+					inflight[i]++;
+					sent++;
+				}
+				client.flush();
+				client.update();
+			}
+		}
+		double elapsed = (System.nanoTime() - ts) / 1e9;
+		long done = completed;
+
+		TransmodServer.Histogram h = histogram;
+		System.out.printf("sent=%d completed=%d errors=%d\n", sent, done, errors);
+		System.out.printf("ops/sec: %.0f\n", done / elapsed);
+		System.out.printf("latency(us): p50=%d p99=%d p999=%d max=%d\n",
+				h.percentile(50), h.percentile(99), h.percentile(99.9), h.max());
+
+		for (int i = 0; i < connections; i++) {
+			clients[i].close();
+		}
+		if (server != null) server.stop();
+	}
+}
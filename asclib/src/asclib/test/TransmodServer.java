@@ -0,0 +1,444 @@
+package asclib.test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import asclib.core.CoreEncode;
+import asclib.net.ChannelInst;
+
+
+/**
+ * In-process transmod emulator for benchmarking ChannelLib/ChannelSocket.
+ * Speaks the ChannelInst protocol: login with channel id, ITMS_CHID, NOOP,
+ * DATA, BROADCAST, CLOSE, TAG and CHANNEL. Virtual users can be simulated
+ * to send ITMT_DATA at a given rate, each payload starts with the
+ * System.nanoTime() of sending, echoes received by the emulator are
+ * recorded into a latency histogram.
+ */
+public class TransmodServer {
+
+	private static final int[] HEAD_LEN = { 2, 2, 4, 4, 1, 1, 2, 2, 4, 4, 1, 1 };
+	private static final int[] HEAD_INC = { 0, 0, 0, 0, 0, 0, 2, 2, 4, 4, 1, 1 };
+
+	/**
+	 * Latency histogram with 1 microsecond resolution up to 1 second
+	 */
+	public static class Histogram {
+		private static final int LIMIT = 1000000;
+		private long[] counts = new long[LIMIT + 1];
+		private long total = 0;
+		private long max = 0;
+
+		public synchronized void record(long nanos) {
+			long us = nanos / 1000;
+			if (us < 0) us = 0;
+			if (us > max) max = us;
+			counts[(us < LIMIT)? (int)us : LIMIT]++;
+			total++;
+		}
+
+		/**
+		 * get percentile in microseconds
+		 * @param p percentile (0 - 100)
+		 * @return latency in microseconds
+		 */
+		public synchronized long percentile(double p) {
+			if (total == 0) return 0;
+			long need = (long)Math.ceil(total * p / 100.0);
+			if (need < 1) need = 1;
+			long sum = 0;
+			for (int i = 0; i <= LIMIT; i++) {
+				sum += counts[i];
+				if (sum >= need) return (i < LIMIT)? i : max;
+			}
+			return max;
+		}
+
+		public synchronized long count() {
+			return total;
+		}
+
+		public synchronized long max() {
+			return max;
+		}
+
+		public synchronized void reset() {
+			for (int i = 0; i <= LIMIT; i++) counts[i] = 0;
+			total = 0;
+			max = 0;
+		}
+	}
+
+	/**
+	 * A connected channel
+	 */
+	private class Session {
+		private Socket sock = null;
+		private InputStream is = null;
+		private OutputStream os = null;
+		private int channel = 0;
+		private byte[] head = new byte[8];
+		private byte[] frame = new byte[10];
+		private HashMap<Integer, Integer> tags = new HashMap<Integer, Integer>();
+
+		public Session(Socket sock) throws IOException {
+			this.sock = sock;
+			this.is = new BufferedInputStream(sock.getInputStream(), 0x100000);
+			this.os = new BufferedOutputStream(sock.getOutputStream(), 0x100000);
+			sock.setTcpNoDelay(true);
+		}
+
+		private void readFully(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				int n = is.read(b, off, len);
+				if (n < 0) throw new IOException("remote closed");
+				off += n;
+				len -= n;
+			}
+		}
+
+		public byte[] recv() throws IOException {
+			int hlen = HEAD_LEN[header];
+			readFully(head, 0, hlen);
+			int size = 0;
+			switch (header % 6) {
+			case 0: size = CoreEncode.decode16u_lsb(head, 0); break;
+			case 1: size = CoreEncode.decode16u_msb(head, 0); break;
+			case 2: size = CoreEncode.decode32i_lsb(head, 0); break;
+			case 3: size = CoreEncode.decode32i_msb(head, 0); break;
+			default: size = CoreEncode.decode8u(head, 0); break;
+			}
+			size = size + HEAD_INC[header] - hlen;
+			byte[] b = new byte[size];
+			readFully(b, 0, size);
+			return b;
+		}
+
+		public void send(int event, int wparam, int lparam, byte[] data, int off, int len) throws IOException {
+			int hlen = HEAD_LEN[header];
+			int size = len + 10 + hlen - HEAD_INC[header];
+			synchronized (this) {
+				switch (header % 6) {
+				case 0: CoreEncode.encode16u_lsb(head, 0, size); break;
+				case 1: CoreEncode.encode16u_msb(head, 0, size); break;
+				case 2: CoreEncode.encode32i_lsb(head, 0, size); break;
+				case 3: CoreEncode.encode32i_msb(head, 0, size); break;
+				default: CoreEncode.encode8u(head, 0, size); break;
+				}
+				CoreEncode.encode16u_lsb(frame, 0, event);
+				CoreEncode.encode32i_lsb(frame, 2, wparam);
+				CoreEncode.encode32i_lsb(frame, 6, lparam);
+				os.write(head, 0, hlen);
+				os.write(frame, 0, 10);
+				if (len > 0) os.write(data, off, len);
+			}
+		}
+
+		public void flush() throws IOException {
+			synchronized (this) {
+				os.flush();
+			}
+		}
+
+		public synchronized int tag(int hid) {
+			Integer tag = tags.get(hid);
+			return (tag == null)? -1 : tag;
+		}
+
+		public synchronized void setTag(int hid, int tag) {
+			tags.put(hid, tag);
+		}
+
+		public void close() {
+			try {
+				sock.close();
+			}	catch (IOException e) {
+			}
+		}
+
+		public void run() {
+			try {
+				byte[] login = recv();
+				channel = CoreEncode.decode16u_lsb(login, 0);
+				synchronized (sessions) {
+					if (channel == 0xffff) {
+						for (channel = 1; sessions.containsKey(channel); channel++);
+					}
+					sessions.put(channel, this);
+					sessions.notifyAll();
+				}
+				while (true) {
+					byte[] b = recv();
+					if (b.length < 10) break;
+					handle(b);
+				}
+			}	catch (IOException e) {
+			}
+			synchronized (sessions) {
+				if (sessions.get(channel) == this) {
+					sessions.remove(channel);
+				}
+			}
+			close();
+		}
+
+		private void received(byte[] b, int off, int len) {
+			received.incrementAndGet();
+			if (len >= 8) {
+				long ts = CoreEncode.decode64i_lsb(b, off);
+				if (ts != 0) latency.record(System.nanoTime() - ts);
+			}
+		}
+
+		private void handle(byte[] b) throws IOException {
+			int event = CoreEncode.decode16u_lsb(b, 0);
+			int wparam = CoreEncode.decode32i_lsb(b, 2);
+			int lparam = CoreEncode.decode32i_lsb(b, 6);
+			int length = b.length - 10;
+			commands.incrementAndGet();
+			switch (event) {
+			case ChannelInst.ITMC_DATA:
+			case ChannelInst.ITMC_UNRDAT:
+				received(b, 10, length);
+				break;
+			case ChannelInst.ITMC_BROADCAST:
+				if (wparam >= 0 && wparam * 4 <= length) {
+					for (int i = 0; i < wparam; i++) {
+						received(b, 10, length - wparam * 4);
+					}
+				}
+				break;
+			case ChannelInst.ITMC_CLOSE:
+				if (leave(wparam)) {
+					send(ChannelInst.ITMT_LEAVE, wparam, tag(wparam), null, 0, 0);
+				}
+				break;
+			case ChannelInst.ITMC_TAG:
+				setTag(wparam, lparam);
+				break;
+			case ChannelInst.ITMC_CHANNEL:
+				Session target = null;
+				synchronized (sessions) {
+					target = sessions.get(wparam);
+				}
+				if (target != null) {
+					target.send(ChannelInst.ITMT_CHANNEL, channel, 0, b, 10, length);
+					target.flush();
+				}
+				break;
+			case ChannelInst.ITMC_SYSCD:
+				if (wparam == ChannelInst.ITMS_CHID) {
+					send(ChannelInst.ITMT_SYSCD, ChannelInst.ITMS_CHID, channel, null, 0, 0);
+				}
+				break;
+			case ChannelInst.ITMC_NOOP:
+				send(ChannelInst.ITMT_NOOP, wparam, lparam, null, 0, 0);
+				break;
+			}
+			if (is.available() == 0) {
+				flush();
+			}
+		}
+	}
+
+	private int header = 2;
+	private ServerSocket server = null;
+	private Thread acceptor = null;
+	private HashMap<Integer, Session> sessions = new HashMap<Integer, Session>();
+	private volatile boolean running = false;
+	private boolean[] online = new boolean[0];
+
+	private Histogram latency = new Histogram();
+	private AtomicLong received = new AtomicLong(0);
+	private AtomicLong commands = new AtomicLong(0);
+	private AtomicLong sent = new AtomicLong(0);
+
+	/**
+	 * Create emulator
+	 * @param header header format (0-11), ChannelLib.attach maps 12-14 to 2
+	 */
+	public TransmodServer(int header) {
+		this.header = (header >= 12)? 2 : ((header < 0)? 0 : header);
+	}
+
+	/**
+	 * start listening on 127.0.0.1
+	 * @param port port, 0 to allocate
+	 * @return listening port
+	 */
+	public int start(int port) throws IOException {
+		server = new ServerSocket(port, 16, InetAddress.getByName("127.0.0.1"));
+		running = true;
+		acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (running) {
+					try {
+						Socket sock = server.accept();
+						final Session session = new Session(sock);
+						Thread t = new Thread(new Runnable() {
+							@Override
+							public void run() {
+								session.run();
+							}
+						}, "TransmodSession");
+						t.setDaemon(true);
+						t.start();
+					}	catch (IOException e) {
+						break;
+					}
+				}
+			}
+		}, "TransmodServer");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		return server.getLocalPort();
+	}
+
+	public void stop() {
+		running = false;
+		try {
+			if (server != null) server.close();
+		}	catch (IOException e) {
+		}
+		synchronized (sessions) {
+			for (Session s : sessions.values()) {
+				s.close();
+			}
+			sessions.clear();
+		}
+	}
+
+	private Session waitSession(int channel, long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized (sessions) {
+			while (true) {
+				Session s = sessions.get(channel);
+				if (s != null) return s;
+				long rest = deadline - System.currentTimeMillis();
+				if (rest <= 0) return null;
+				try {
+					sessions.wait(rest);
+				}	catch (InterruptedException e) {
+					return null;
+				}
+			}
+		}
+	}
+
+	private synchronized boolean leave(int hid) {
+		if (hid < 0 || hid >= online.length || online[hid] == false) return false;
+		online[hid] = false;
+		return true;
+	}
+
+	/**
+	 * Simulate users: send ITMT_NEW for hid 0 to users-1, then each user
+	 * sends ITMT_DATA of the given size at the given rate to the channel,
+	 * and ITMT_LEAVE for remaining users at the end.
+	 * @param channel which channel receives users
+	 * @param users how many virtual users
+	 * @param rate messages per second per user
+	 * @param size payload size (at least 8 bytes for the timestamp)
+	 * @param millisec how long to run
+	 * @param group consecutive hids sending the same payload, like a
+	 * broadcast echoed back, so aggregation can merge the replies
+	 * @return how many ITMT_DATA sent, -1 for error
+	 */
+	public long simulate(int channel, int users, int rate, int size, long millisec, int group) throws IOException {
+		Session s = waitSession(channel, 10000);
+		if (s == null) return -1;
+		synchronized (this) {
+			online = new boolean[users];
+			for (int i = 0; i < users; i++) online[i] = true;
+		}
+		for (int hid = 0; hid < users; hid++) {
+			s.send(ChannelInst.ITMT_NEW, hid, 0, null, 0, 0);
+		}
+		s.flush();
+		byte[] payload = new byte[(size < 8)? 8 : size];
+		long start = System.nanoTime();
+		long total = (long)users * rate;
+		long count = 0;
+		long posted = 0;
+		int hid = 0;
+		if (group < 1) group = 1;
+		while (running) {
+			long now = System.nanoTime();
+			long elapsed = now - start;
+			if (elapsed >= millisec * 1000000L) break;
+			long due = total * elapsed / 1000000000L;
+			if (count >= due) {
+				try {
+					Thread.sleep(1);
+				}	catch (InterruptedException e) {
+					break;
+				}
+				continue;
+			}
+			for (; count < due; count++) {
+				if (hid % group == 0) {
+					CoreEncode.encode64i_lsb(payload, 0, System.nanoTime());
+				}
+				if (online[hid]) {
+					s.send(ChannelInst.ITMT_DATA, hid, s.tag(hid), payload, 0, payload.length);
+					sent.incrementAndGet();
+					posted++;
+				}
+				if (++hid >= users) hid = 0;
+			}
+			s.flush();
+		}
+		for (hid = 0; hid < users; hid++) {
+			if (leave(hid)) {
+				s.send(ChannelInst.ITMT_LEAVE, hid, s.tag(hid), null, 0, 0);
+			}
+		}
+		s.flush();
+		return posted;
+	}
+
+	public long simulate(int channel, int users, int rate, int size, long millisec) throws IOException {
+		return simulate(channel, users, rate, size, millisec, 1);
+	}
+
+	public Histogram latency() {
+		return latency;
+	}
+
+	/**
+	 * how many messages have been received by virtual users
+	 */
+	public long received() {
+		return received.get();
+	}
+
+	/**
+	 * how many ITMT_DATA have been sent to the channel
+	 */
+	public long sent() {
+		return sent.get();
+	}
+
+	/**
+	 * how many commands have been received from channels
+	 */
+	public long commands() {
+		return commands.get();
+	}
+
+	public void reset() {
+		latency.reset();
+		received.set(0);
+		commands.set(0);
+		sent.set(0);
+	}
+}
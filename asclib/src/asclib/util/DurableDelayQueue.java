@@ -0,0 +1,717 @@
+package asclib.util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import asclib.core.CoreWheel;
+
+/**
+ * Persistent delay queue: jobs live in a CoreWheel in memory and in an
+ * append-only journal on disk, which is a series of memory mapped
+ * segments (journal.N). Writes are group committed: the mapped buffer
+ * is forced every [batch] records or [millisec], whichever is first.
+ * When the journal grows over twice the live data, the live jobs are
+ * written to snapshot.N by a background thread and the segments <= N
+ * are deleted. Reload reads the latest snapshot, then replays the
+ * segments after it.
+ *
+ * A job is marked done after OnJob() returns, a crash in between
+ * fires it again after restart (at-least-once). If OnJob() throws, the
+ * job stays journaled, OnError() gets its id, and it is retried after a
+ * backoff doubling from one tick up to a minute (reset by a restart).
+ * poll() rethrows the first exception after the other due jobs ran, a
+ * job which always fails can be dropped by cancel() in OnError(). Not
+ * thread-safe, all the calls are expected from the owner thread, like
+ * CoreTimer.
+ */
+public class DurableDelayQueue {
+
+	private static final byte TYPE_ADD = 1;
+	private static final byte TYPE_DONE = 2;
+	private static final byte TYPE_META = 3;     // id = next id
+	private static final int HEAD_SIZE = 4 + 1 + 8 + 8;
+	private static final int RECORD_SIZE = HEAD_SIZE + 4;
+	private static final long RANGE = (1L << 32) - 1;
+	private static final long BACKOFF = 60000;   // max retry delay of a failed job
+
+	public static abstract class Listener {
+		public abstract void OnJob(long id, long due, byte[] payload);
+		// OnJob() has thrown, the job will be retried unless cancelled here
+		public void OnError(long id, long due, RuntimeException e) {}
+	}
+
+	private final File mDir;
+	private final Listener mListener;
+	private final long mTick;
+	private CoreWheel mWheel = null;
+	private HashMap<Long, Integer> mJobs = new HashMap<Long, Integer>();
+	private byte[][] mPayloads = new byte[1024][];
+	private long[] mDues = new long[1024];
+	private int[] mRetries = new int[1024];      // failures in a row
+	private long mNextId = 1;
+	private long mNow = 0;
+	private RuntimeException mFailure = null;   // first OnJob error of poll()
+
+	private int mSegmentSize = 64 << 20;
+	private int mSegment = 0;                 // sequence of active segment
+	private MappedByteBuffer mBuffer = null;
+	private TreeMap<Integer, Long> mSegments = new TreeMap<Integer, Long>();   // seq -> bytes
+	private int mSnapshot = 0;                // 0 for none
+	private long mJournalBytes = 0;
+	private long mLiveBytes = 0;
+
+	private int mSyncBatch = 256;
+	private int mSyncMillisec = 10;
+	private int mDirty = 0;
+	private long mLastSync = 0;
+	private long mSyncs = 0;
+
+	private final CRC32 mCrc = new CRC32();
+	private final byte[] mHead = new byte[HEAD_SIZE];
+	private final ByteBuffer mHeadBuf = ByteBuffer.wrap(mHead);
+
+	private Thread mCompactor = null;
+	private volatile int mCompacted = 0;      // snapshot finished, to apply
+	private volatile IOException mCompactError = null;
+	private long mCompactions = 0;
+
+	/**
+	 * open (or create) a queue in the directory and reload its jobs
+	 * @param dir journal directory
+	 * @param tick wheel granularity in millisec
+	 * @param listener callback of expired jobs
+	 */
+	public DurableDelayQueue(File dir, int tick, Listener listener) throws IOException {
+		mDir = dir;
+		mTick = (tick < 1)? 1 : tick;
+		mListener = listener;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("can not create " + dir);
+		}
+		mNow = System.currentTimeMillis();
+		mWheel = new CoreWheel(mNow / mTick, new CoreWheel.Handler() {
+			@Override
+			public void OnTimer(int handle, long data) {
+				expire(handle, data);
+			}
+		});
+		load();
+	}
+
+	public DurableDelayQueue(File dir, Listener listener) throws IOException {
+		this(dir, 10, listener);
+	}
+
+	/**
+	 * group commit parameters
+	 * @param batch force after this many records
+	 * @param millisec force when the oldest unsynced record is older
+	 */
+	public void setSync(int batch, int millisec) {
+		mSyncBatch = batch;
+		mSyncMillisec = millisec;
+	}
+
+	/**
+	 * size of new segments, takes effect at the next roll
+	 */
+	public void setSegmentSize(int size) {
+		mSegmentSize = Math.max(size, 4096);
+	}
+
+	private File file(String prefix, int seq) {
+		return new File(mDir, String.format("%s.%08d", prefix, seq));
+	}
+
+	private static int sequence(String name, String prefix) {
+		if (!name.startsWith(prefix + ".")) return -1;
+		String s = name.substring(prefix.length() + 1);
+		if (s.length() != 8) return -1;
+		try {
+			return Integer.parseInt(s);
+		}	catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	//---------------------------------------------------------------------
+	// reload
+	//---------------------------------------------------------------------
+	private void load() throws IOException {
+		String[] names = mDir.list();
+		int snapshot = 0;
+		ArrayList<Integer> segments = new ArrayList<Integer>();
+		for (String name : names) {
+			if (name.endsWith(".tmp")) {
+				new File(mDir, name).delete();
+				continue;
+			}
+			int seq = sequence(name, "snapshot");
+			if (seq > snapshot) snapshot = seq;
+			seq = sequence(name, "journal");
+			if (seq > 0) segments.add(seq);
+		}
+		java.util.Collections.sort(segments);
+		if (snapshot > 0) {
+			mJournalBytes += replay(file("snapshot", snapshot));
+		}
+		int last = snapshot;
+		for (int seq : segments) {
+			if (seq <= snapshot) {
+				file("journal", seq).delete();
+				continue;
+			}
+			long bytes = replay(file("journal", seq));
+			mJournalBytes += bytes;
+			mSegments.put(seq, bytes);
+			last = seq;
+		}
+		for (String name : names) {
+			int seq = sequence(name, "snapshot");
+			if (seq > 0 && seq < snapshot) new File(mDir, name).delete();
+		}
+		mSnapshot = snapshot;
+		if (last > snapshot) {
+			reopen(last, mSegments.get(last));
+		}	else {
+			roll(last + 1);
+		}
+	}
+
+	// replay one file, returns bytes of valid records
+	private long replay(File f) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		MappedByteBuffer buf = null;
+		try {
+			buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		}	finally {
+			raf.close();
+		}
+		CRC32 crc = new CRC32();
+		byte[] head = new byte[HEAD_SIZE - 4];
+		while (buf.remaining() >= RECORD_SIZE) {
+			int start = buf.position();
+			int length = buf.getInt();
+			if (length < RECORD_SIZE - 4 || length > buf.remaining()) {
+				buf.position(start);
+				break;
+			}
+			buf.get(head);
+			byte[] payload = new byte[length - (RECORD_SIZE - 4)];
+			buf.get(payload);
+			int sum = buf.getInt();
+			crc.reset();
+			crc.update(head);
+			crc.update(payload);
+			if ((int)crc.getValue() != sum) {
+				buf.position(start);
+				break;      // torn write at the tail
+			}
+			ByteBuffer h = ByteBuffer.wrap(head);
+			byte type = h.get();
+			long id = h.getLong();
+			long due = h.getLong();
+			if (type == TYPE_ADD) {
+				Integer old = mJobs.get(id);
+				if (old != null) remove(old);
+				insert(id, due, payload);
+			}
+			else if (type == TYPE_DONE) {
+				Integer handle = mJobs.get(id);
+				if (handle != null) remove(handle);
+			}
+			if (id >= mNextId) mNextId = (type == TYPE_META)? id : id + 1;
+		}
+		return buf.position();
+	}
+
+	//---------------------------------------------------------------------
+	// journal
+	//---------------------------------------------------------------------
+	private void roll(int seq) throws IOException {
+		if (mBuffer != null) {
+			mBuffer.force();
+			mSyncs++;
+			mDirty = 0;
+			mSegments.put(mSegment, (long)mBuffer.position());
+		}
+		RandomAccessFile raf = new RandomAccessFile(file("journal", seq), "rw");
+		try {
+			mBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+		}	finally {
+			raf.close();
+		}
+		mSegment = seq;
+		mSegments.put(seq, 0L);
+	}
+
+	// continue the last segment after its replayed records, instead of
+	// mapping a new one on every restart. if anything was written past
+	// them (a torn record, and maybe valid ones after it), new appends
+	// could end on a stale record boundary: start a new segment then.
+	private void reopen(int seq, long bytes) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file("journal", seq), "rw");
+		try {
+			mBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+		}	finally {
+			raf.close();
+		}
+		mSegment = seq;
+		int pos = (int)bytes;
+		mBuffer.position(pos);
+		boolean clean = true;
+		int end = mBuffer.limit();
+		for (int i = pos; i < end && clean; ) {
+			if (end - i >= 8) {
+				clean = (mBuffer.getLong(i) == 0);
+				i += 8;
+			}	else {
+				clean = (mBuffer.get(i) == 0);
+				i++;
+			}
+		}
+		if (!clean) {
+			mBuffer = null;     // replay stops at pos, leave it as it is
+			roll(seq + 1);
+		}
+		else if (mBuffer.remaining() < RECORD_SIZE) {
+			roll(seq + 1);
+		}
+	}
+
+	private void append(byte type, long id, long due, byte[] payload) throws IOException {
+		int size = RECORD_SIZE + payload.length;
+		if (size > mSegmentSize) {
+			throw new IOException("payload too large: " + payload.length);
+		}
+		if (mBuffer.remaining() < size) {
+			roll(mSegment + 1);
+		}
+		mHeadBuf.clear();
+		mHeadBuf.putInt(size - 4).put(type).putLong(id).putLong(due);
+		mCrc.reset();
+		mCrc.update(mHead, 4, HEAD_SIZE - 4);
+		mCrc.update(payload);
+		mBuffer.put(mHead);
+		mBuffer.put(payload);
+		mBuffer.putInt((int)mCrc.getValue());
+		mJournalBytes += size;
+		if (mDirty++ == 0) mLastSync = System.currentTimeMillis();
+		if (mDirty >= mSyncBatch) sync();
+	}
+
+	/**
+	 * force unsynced records to disk now
+	 */
+	public void sync() {
+		if (mDirty > 0 && mBuffer != null) {
+			mBuffer.force();
+			mSyncs++;
+			mDirty = 0;
+		}
+	}
+
+	//---------------------------------------------------------------------
+	// memory
+	//---------------------------------------------------------------------
+	private void insert(long id, long due, byte[] payload) {
+		int handle = mWheel.create(id);
+		if (handle >= mDues.length) {
+			int size = Math.max(handle + 1, mDues.length * 2);
+			mDues = Arrays.copyOf(mDues, size);
+			mPayloads = Arrays.copyOf(mPayloads, size);
+			mRetries = Arrays.copyOf(mRetries, size);
+		}
+		mDues[handle] = due;
+		mRetries[handle] = 0;
+		mPayloads[handle] = payload;
+		mJobs.put(id, handle);
+		mLiveBytes += RECORD_SIZE + payload.length;
+		arm(handle);
+	}
+
+	private void remove(int handle) {
+		long id = mWheel.data(handle);
+		mLiveBytes -= RECORD_SIZE + mPayloads[handle].length;
+		mJobs.remove(id);
+		mPayloads[handle] = null;
+		mWheel.free(handle);
+	}
+
+	private void arm(int handle) {
+		long t = mDues[handle] / mTick;
+		long current = mWheel.jiffies();
+		if (t - current > RANGE) t = current + RANGE;
+		mWheel.start(handle, t);
+	}
+
+	private void expire(int handle, long id) {
+		if (mDues[handle] > mNow) {
+			arm(handle);     // clamped to the wheel range
+			return;
+		}
+		long due = mDues[handle];
+		byte[] payload = mPayloads[handle];
+		boolean done = false;
+		try {
+			mListener.OnJob(id, due, payload);
+			done = true;
+		}	catch (RuntimeException e) {
+			if (mFailure == null) mFailure = e;
+			mListener.OnError(id, due, e);
+		}	finally {
+			// not cancelled inside OnJob
+			if (mJobs.get(id) != null) {
+				if (done) {
+					remove(handle);
+					try {
+						append(TYPE_DONE, id, due, new byte[0]);
+					}	catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}	else {
+					// failed: still journaled, retry after a backoff
+					int retries = Math.min(++mRetries[handle], 30);
+					long delay = Math.min((long)mTick << (retries - 1), BACKOFF);
+					mWheel.start(handle, mNow / mTick + Math.max(delay / mTick, 1));
+				}
+			}
+		}
+	}
+
+	//---------------------------------------------------------------------
+	// interface
+	//---------------------------------------------------------------------
+
+	/**
+	 * add a job
+	 * @param due epoch millisec when it should run
+	 * @param payload job data
+	 * @return job id
+	 */
+	public long add(long due, byte[] payload) throws IOException {
+		long id = mNextId++;
+		append(TYPE_ADD, id, due, payload);
+		insert(id, due, payload);
+		return id;
+	}
+
+	/**
+	 * add a job to run after delay millisec from now
+	 */
+	public long addDelay(long delay, byte[] payload) throws IOException {
+		return add(System.currentTimeMillis() + delay, payload);
+	}
+
+	/**
+	 * cancel a pending job
+	 * @return true if it was pending
+	 */
+	public boolean cancel(long id) throws IOException {
+		Integer handle = mJobs.get(id);
+		if (handle == null) return false;
+		long due = mDues[handle];
+		remove(handle);
+		append(TYPE_DONE, id, due, new byte[0]);
+		return true;
+	}
+
+	public boolean pending(long id) {
+		return mJobs.containsKey(id);
+	}
+
+	/**
+	 * run due jobs, group commit and drive compaction
+	 * @param now epoch millisec
+	 * @return how many jobs fired
+	 * @throws RuntimeException the first one thrown by OnJob(), after
+	 * all the due jobs ran, the failed jobs will be retried later
+	 */
+	public long poll(long now) throws IOException {
+		mNow = now;
+		long count = mWheel.run(now / mTick);
+		// mLastSync is wall time, whatever timebase the caller uses
+		if (mDirty > 0 && System.currentTimeMillis() - mLastSync >= mSyncMillisec) {
+			sync();
+		}
+		compact();
+		if (mFailure != null) {
+			RuntimeException e = mFailure;
+			mFailure = null;
+			throw e;
+		}
+		return count;
+	}
+
+	public long poll() throws IOException {
+		return poll(System.currentTimeMillis());
+	}
+
+	//---------------------------------------------------------------------
+	// compaction
+	//---------------------------------------------------------------------
+	private void compact() throws IOException {
+		if (mCompactError != null) {
+			IOException e = mCompactError;
+			mCompactError = null;
+			mCompactor = null;
+			throw e;
+		}
+		if (mCompacted > 0) {
+			apply(mCompacted);
+			mCompacted = 0;
+			mCompactor = null;
+		}
+		if (mCompactor != null) return;
+		if (mJournalBytes < mSegmentSize || mJournalBytes < mLiveBytes * 2) {
+			return;
+		}
+		startCompaction();
+	}
+
+	/**
+	 * snapshot live jobs in background, the segments up to the current
+	 * one will be dropped once the snapshot is on disk
+	 */
+	public void startCompaction() throws IOException {
+		if (mCompactor != null) return;
+		final int seq = mSegment;
+		roll(mSegment + 1);
+		final int size = mJobs.size();
+		final long[] ids = new long[size];
+		final long[] dues = new long[size];
+		final byte[][] payloads = new byte[size][];
+		int i = 0;
+		for (Integer handle : mJobs.values()) {
+			ids[i] = mWheel.data(handle);
+			dues[i] = mDues[handle];
+			payloads[i] = mPayloads[handle];
+			i++;
+		}
+		final long next = mNextId;
+		mCompactor = new Thread() {
+			@Override
+			public void run() {
+				try {
+					writeSnapshot(seq, next, ids, dues, payloads);
+					mCompacted = seq;
+				}	catch (IOException e) {
+					mCompactError = e;
+				}
+			}
+		};
+		mCompactor.setName("DurableDelayQueue-compact");
+		mCompactor.setDaemon(true);
+		mCompactor.start();
+	}
+
+	private void writeSnapshot(int seq, long next, long[] ids, long[] dues,
+			byte[][] payloads) throws IOException {
+		File tmp = new File(file("snapshot", seq).getPath() + ".tmp");
+		FileOutputStream fs = new FileOutputStream(tmp);
+		try {
+			DataOutputStream os = new DataOutputStream(new BufferedOutputStream(fs, 1 << 20));
+			CRC32 crc = new CRC32();
+			byte[] head = new byte[HEAD_SIZE - 4];
+			ByteBuffer h = ByteBuffer.wrap(head);
+			for (int i = -1; i < ids.length; i++) {
+				byte type = (i < 0)? TYPE_META : TYPE_ADD;
+				long id = (i < 0)? next : ids[i];
+				long due = (i < 0)? 0 : dues[i];
+				byte[] payload = (i < 0)? new byte[0] : payloads[i];
+				h.clear();
+				h.put(type).putLong(id).putLong(due);
+				crc.reset();
+				crc.update(head);
+				crc.update(payload);
+				os.writeInt(RECORD_SIZE - 4 + payload.length);
+				os.write(head);
+				os.write(payload);
+				os.writeInt((int)crc.getValue());
+			}
+			os.flush();
+			fs.getChannel().force(true);
+		}	finally {
+			fs.close();
+		}
+		if (!tmp.renameTo(file("snapshot", seq))) {
+			throw new IOException("can not rename " + tmp);
+		}
+	}
+
+	// snapshot.seq is durable: drop what it covers
+	private void apply(int seq) {
+		long total = file("snapshot", seq).length();
+		while (mSegments.size() > 0 && mSegments.firstKey() <= seq) {
+			file("journal", mSegments.pollFirstEntry().getKey()).delete();
+		}
+		if (mSnapshot > 0) {
+			file("snapshot", mSnapshot).delete();
+		}
+		mSnapshot = seq;
+		// segments are mapped at full size, count the written bytes
+		for (Map.Entry<Integer, Long> it : mSegments.entrySet()) {
+			total += (it.getKey() == mSegment)? mBuffer.position() : it.getValue();
+		}
+		mJournalBytes = total;
+		mCompactions++;
+	}
+
+	/**
+	 * wait for a running compaction and apply it
+	 */
+	public void join() throws IOException {
+		Thread t = mCompactor;
+		if (t != null) {
+			try {
+				t.join();
+			}	catch (InterruptedException e) {
+			}
+			compact();
+		}
+	}
+
+	/**
+	 * sync and release the journal
+	 */
+	public void close() throws IOException {
+		join();
+		sync();
+		mBuffer = null;
+	}
+
+	public int size() {
+		return mJobs.size();
+	}
+
+	public long journalBytes() {
+		return mJournalBytes;
+	}
+
+	public long liveBytes() {
+		return mLiveBytes;
+	}
+
+	public long syncs() {
+		return mSyncs;
+	}
+
+	public long compactions() {
+		return mCompactions;
+	}
+
+	/**
+	 * testing case
+	 * @param args [directory] [jobs]
+	 */
+	public static void main(String[] args) throws Exception {
+		File dir = new File((args.length > 0)? args[0] : "delayqueue.test");
+		int N = (args.length > 1)? Integer.parseInt(args[1]) : 1000000;
+		final long[] fired = new long[1];
+		Listener listener = new Listener() {
+			@Override
+			public void OnJob(long id, long due, byte[] payload) {
+				fired[0]++;
+			}
+		};
+		if (dir.isDirectory()) {
+			for (File f : dir.listFiles()) f.delete();
+		}
+		long now = System.currentTimeMillis();
+		DurableDelayQueue queue = new DurableDelayQueue(dir, listener);
+		byte[] payload = "retry:push:0123456789abcdef".getBytes("UTF-8");
+		long ts = System.nanoTime();
+		for (int i = 0; i < N; i++) {
+			long due = (i % 4 == 0)? now : now + 3600000 + i;
+			queue.add(due, payload);
+		}
+		queue.poll(now);
+		System.out.printf("add %d jobs: %dms, syncs=%d, fired=%d\n", N,
+				(System.nanoTime() - ts) / 1000000, queue.syncs(), fired[0]);
+		ts = System.nanoTime();
+		queue.startCompaction();
+		queue.join();
+		System.out.printf("compaction: %dms, journal=%dKB live=%dKB\n",
+				(System.nanoTime() - ts) / 1000000, queue.journalBytes() >> 10,
+				queue.liveBytes() >> 10);
+		for (int i = 1; i <= N; i += 8) {
+			queue.cancel(i + 1);
+		}
+		queue.close();
+		int remain = queue.size();
+		ts = System.nanoTime();
+		queue = new DurableDelayQueue(dir, listener);
+		System.out.printf("reload: %dms, size=%d/%d\n",
+				(System.nanoTime() - ts) / 1000000, queue.size(), remain);
+		fired[0] = 0;
+		queue.poll(now + 3600000 + N);
+		System.out.printf("fired=%d size=%d\n", fired[0], queue.size());
+		queue.close();
+
+		// torn tail: record #51 is lost, the ones behind it must stay dead
+		File torn = new File(dir.getPath() + ".torn");
+		if (torn.isDirectory()) {
+			for (File f : torn.listFiles()) f.delete();
+		}
+		queue = new DurableDelayQueue(torn, listener);
+		for (int i = 1; i <= 100; i++) {
+			queue.add(now + 3600000, payload);
+		}
+		for (int i = 61; i <= 100; i++) {
+			queue.cancel(i);
+		}
+		queue.close();
+		int size = RECORD_SIZE + payload.length;
+		RandomAccessFile raf = new RandomAccessFile(new File(torn, "journal.00000001"), "rw");
+		raf.seek(size * 50);
+		raf.write(new byte[size]);
+		raf.close();
+		queue = new DurableDelayQueue(torn, listener);
+		System.out.printf("torn reload: size=%d (expect 50)\n", queue.size());
+		for (int i = 0; i < 30; i++) {
+			queue.add(now + 3600000, payload);
+		}
+		queue.close();
+		queue = new DurableDelayQueue(torn, listener);
+		System.out.printf("torn restart: size=%d (expect 80)\n", queue.size());
+		queue.close();
+
+		// poison job: retried with a backoff, not on every poll()
+		File poisoned = new File(dir.getPath() + ".poison");
+		if (poisoned.isDirectory()) {
+			for (File f : poisoned.listFiles()) f.delete();
+		}
+		final long[] failed = new long[2];
+		queue = new DurableDelayQueue(poisoned, new Listener() {
+			@Override
+			public void OnJob(long id, long due, byte[] payload) {
+				if (payload.length == 0) throw new IllegalStateException("job " + id);
+			}
+			@Override
+			public void OnError(long id, long due, RuntimeException e) {
+				failed[0] = id;
+				failed[1]++;
+			}
+		});
+		long poison = queue.add(now, new byte[0]);
+		queue.add(now, payload);
+		for (int i = 0; i < 1000; i++) {
+			try {
+				queue.poll(now + i * 10);
+			}	catch (IllegalStateException e) {
+			}
+		}
+		System.out.printf("poison: id=%d/%d attempts=%d in 10s, size=%d\n",
+				failed[0], poison, failed[1], queue.size());
+		queue.cancel(poison);
+		queue.close();
+	}
+}
@@ -0,0 +1,356 @@
+package asclib.util;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.io.*;
+
+import asclib.core.CoreWheel;
+
+/**
+ * Sharded timer service: one CoreWheel per worker thread, a timer is
+ * owned by the shard chosen by key (or the calling shard), other
+ * threads talk to it through the shard's mailbox. expired timers are
+ * executed at most [budget] per tick, the rest is carried over, so
+ * a mass expiry is spread over several ticks instead of stalling.
+ */
+public class TimerService {
+
+	private static final int STATE_PENDING = 0;
+	private static final int STATE_CANCELLED = 1;
+	private static final int STATE_FIRED = 2;
+
+	/**
+	 * handle of a scheduled task, cancel() is safe from any thread
+	 */
+	public static class Timeout {
+		private final Shard mShard;
+		private final Runnable mTask;
+		private final long mDelay;
+		private final AtomicInteger mState = new AtomicInteger(STATE_PENDING);
+		private int mHandle = -1;      // wheel handle, owner thread only
+
+		private Timeout(Shard shard, Runnable task, long delay) {
+			mShard = shard;
+			mTask = task;
+			mDelay = delay;
+		}
+
+		/**
+		 * cancel the task
+		 * @return true if it will not run, false if it has already run
+		 */
+		public boolean cancel() {
+			if (!mState.compareAndSet(STATE_PENDING, STATE_CANCELLED)) {
+				return mState.get() == STATE_CANCELLED;
+			}
+			if (Thread.currentThread() == mShard) {
+				mShard.release(this);
+			}	else {
+				mShard.mMailbox.offer(this);
+			}
+			return true;
+		}
+
+		public boolean isCancelled() {
+			return mState.get() == STATE_CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return mState.get() == STATE_FIRED;
+		}
+
+		public int shard() {
+			return mShard.mIndex;
+		}
+	}
+
+	private class Shard extends Thread {
+		private final int mIndex;
+		private final ConcurrentLinkedQueue<Timeout> mMailbox = new ConcurrentLinkedQueue<Timeout>();
+		private final ArrayDeque<Timeout> mReady = new ArrayDeque<Timeout>();
+		private Timeout[] mTimeouts = new Timeout[1024];
+		private CoreWheel mWheel = null;
+		private long mJiffies = 0;
+		private volatile long mSize = 0;
+
+		Shard(int index) {
+			mIndex = index;
+			mWheel = new CoreWheel(0, new CoreWheel.Handler() {
+				@Override
+				public void OnTimer(int handle, long data) {
+					mReady.add(mTimeouts[handle]);
+				}
+			});
+			setName("TimerService-" + index);
+			setDaemon(true);
+		}
+
+		private void add(Timeout timeout) {
+			if (timeout.mState.get() != STATE_PENDING) return;
+			int handle = mWheel.create(0);
+			if (handle >= mTimeouts.length) {
+				Timeout[] t = new Timeout[Math.max(handle + 1, mTimeouts.length * 2)];
+				System.arraycopy(mTimeouts, 0, t, 0, mTimeouts.length);
+				mTimeouts = t;
+			}
+			mTimeouts[handle] = timeout;
+			timeout.mHandle = handle;
+			long ticks = (timeout.mDelay + mInterval - 1) / mInterval;
+			if (ticks > 0x70000000) ticks = 0x70000000;
+			mWheel.start(handle, mJiffies + ticks);
+			mSize++;
+		}
+
+		private void release(Timeout timeout) {
+			int handle = timeout.mHandle;
+			if (handle < 0) return;
+			mWheel.free(handle);
+			mTimeouts[handle] = null;
+			timeout.mHandle = -1;
+			mSize--;
+		}
+
+		// schedules and cancellations posted by other threads
+		private void drain() {
+			while (true) {
+				Timeout timeout = mMailbox.poll();
+				if (timeout == null) break;
+				if (timeout.mHandle < 0) {
+					add(timeout);
+				}
+				else if (timeout.mState.get() == STATE_CANCELLED) {
+					release(timeout);
+				}
+			}
+		}
+
+		private void execute() {
+			int budget = mBudget;
+			for (int count = 0; budget <= 0 || count < budget; count++) {
+				Timeout timeout = mReady.poll();
+				if (timeout == null) break;
+				if (timeout.mHandle < 0) continue;
+				release(timeout);
+				if (!timeout.mState.compareAndSet(STATE_PENDING, STATE_FIRED)) {
+					continue;
+				}
+				mFired.getAndIncrement();
+				try {
+					timeout.mTask.run();
+				}	catch (java.lang.Throwable e) {
+					if (stderr != null) {
+						e.printStackTrace(stderr);
+					}	else {
+						e.printStackTrace();
+					}
+				}
+			}
+			if (mReady.size() > 0) {
+				mDeferred.getAndIncrement();
+			}
+		}
+
+		@Override
+		public void run() {
+			long interval = mInterval * 1000000L;
+			long next = System.nanoTime();
+			while (!mShutdown) {
+				drain();
+				long now = System.nanoTime();
+				if (now >= next) {
+					mJiffies++;
+					mWheel.run(mJiffies);
+					next += interval;
+					if (now - next > interval * 100) {
+						next = now + interval;
+					}
+					// the budget is per tick, the rest waits for the next one
+					execute();
+				}
+				if (mMailbox.isEmpty()) {
+					long wait = next - System.nanoTime();
+					if (wait > 0) LockSupport.parkNanos(this, wait);
+				}
+			}
+		}
+	}
+
+	private final Shard[] mShards;
+	private final int mInterval;
+	private volatile int mBudget = 10000;
+	private volatile boolean mShutdown = false;
+	private final AtomicInteger mNext = new AtomicInteger(0);
+	private final AtomicLong mFired = new AtomicLong(0);
+	private final AtomicLong mDeferred = new AtomicLong(0);
+	private PrintStream stderr = null;
+
+	/**
+	 * Create TimerService
+	 * @param nShards how many worker threads (wheels)
+	 * @param interval tick interval in millisec
+	 */
+	public TimerService(int nShards, int interval) {
+		if (nShards < 1) nShards = 1;
+		if (interval < 1) interval = 1;
+		mInterval = interval;
+		mShards = new Shard[nShards];
+		for (int i = 0; i < nShards; i++) {
+			mShards[i] = new Shard(i);
+		}
+		for (int i = 0; i < nShards; i++) {
+			mShards[i].start();
+		}
+	}
+
+	private Shard select(Object key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		h *= 0x85ebca6b;
+		h ^= (h >>> 13);
+		return mShards[(h & 0x7fffffff) % mShards.length];
+	}
+
+	private Timeout schedule(Shard shard, Runnable task, long delay) {
+		Timeout timeout = new Timeout(shard, task, (delay < 0)? 0 : delay);
+		if (Thread.currentThread() == shard) {
+			shard.add(timeout);
+		}	else {
+			shard.mMailbox.offer(timeout);
+		}
+		return timeout;
+	}
+
+	/**
+	 * schedule on the shard owning the key, tasks of the same key
+	 * always run on the same thread
+	 * @param key sharding key (session id, connection, ...)
+	 * @param task task to run
+	 * @param delay delay in millisec
+	 * @return timeout handle
+	 */
+	public Timeout schedule(Object key, Runnable task, long delay) {
+		return schedule(select(key), task, delay);
+	}
+
+	/**
+	 * schedule on the calling shard, or spread round-robin when called
+	 * from a thread outside of the service
+	 * @param task task to run
+	 * @param delay delay in millisec
+	 * @return timeout handle
+	 */
+	public Timeout schedule(Runnable task, long delay) {
+		Thread thread = Thread.currentThread();
+		Shard shard = null;
+		for (int i = 0; i < mShards.length; i++) {
+			if (mShards[i] == thread) {
+				shard = mShards[i];
+				break;
+			}
+		}
+		if (shard == null) {
+			int index = (mNext.getAndIncrement() & 0x7fffffff) % mShards.length;
+			shard = mShards[index];
+		}
+		return schedule(shard, task, delay);
+	}
+
+	/**
+	 * set how many expired tasks a shard runs in one tick
+	 * @param budget <= 0 for no limit
+	 */
+	public void setBudget(int budget) {
+		mBudget = budget;
+	}
+
+	/**
+	 * set stderr to print stack trace
+	 * @param stderr
+	 */
+	public void setErr(PrintStream stderr) {
+		this.stderr = stderr;
+	}
+
+	/**
+	 * @return how many timers are scheduled in all the shards
+	 */
+	public long size() {
+		long size = 0;
+		for (int i = 0; i < mShards.length; i++) {
+			size += mShards[i].mSize;
+		}
+		return size;
+	}
+
+	/**
+	 * @return how many tasks have been executed
+	 */
+	public long fired() {
+		return mFired.get();
+	}
+
+	/**
+	 * @return how many ticks ran out of budget and carried tasks over
+	 */
+	public long deferred() {
+		return mDeferred.get();
+	}
+
+	public int shards() {
+		return mShards.length;
+	}
+
+	/**
+	 * stop all the shards, pending tasks are dropped
+	 */
+	public void shutdown() {
+		mShutdown = true;
+		for (int i = 0; i < mShards.length; i++) {
+			LockSupport.unpark(mShards[i]);
+		}
+		for (int i = 0; i < mShards.length; i++) {
+			try {
+				mShards[i].join();
+			}	catch (InterruptedException e) {
+			}
+		}
+	}
+
+	/**
+	 * testing case
+	 * @param args
+	 */
+	public static void main(String[] args) throws Exception {
+		final int N = 2000000;
+		final TimerService service = new TimerService(4, 1);
+		final AtomicLong late = new AtomicLong(0);
+		service.setBudget(1000);
+		final long start = System.currentTimeMillis();
+		Timeout[] timeouts = new Timeout[N];
+		for (int i = 0; i < N; i++) {
+			final long due = System.currentTimeMillis() + 1000;
+			timeouts[i] = service.schedule(Integer.valueOf(i), new Runnable() {
+				@Override
+				public void run() {
+					long t = System.currentTimeMillis() - due;
+					if (t > late.get()) late.set(t);
+				}
+			}, 1000);
+		}
+		long cancelled = 0;
+		for (int i = 0; i < N; i += 2) {
+			if (timeouts[i].cancel()) cancelled++;
+		}
+		System.out.println("scheduled=" + N + " cancelled=" + cancelled +
+				" in " + (System.currentTimeMillis() - start) + "ms");
+		while (service.fired() + cancelled < N) {
+			Thread.sleep(10);
+		}
+		System.out.println("fired=" + service.fired() + " size=" + service.size() +
+				" deferred ticks=" + service.deferred() + " max late=" + late.get() + "ms");
+		service.shutdown();
+	}
+}
@@ -11,6 +11,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 
+import asclib.core.CoreCache;
+
 
 /**
  * 有道词典本地词库读取类
@@ -31,7 +33,8 @@ public class YoudaoDict {
 
 	private Vector<Index> index = new Vector<Index>();
 	private Map<String, Integer> lookup = null;
-	private Map<String, Translate> translate = null;
+	private CoreCache<String, Translate> translate = null;
+	private int cacheSize = 4096;
 	private int startpos = 0;
 	private int wordcount = 0;
 	
@@ -85,7 +88,7 @@ public class YoudaoDict {
 		}
 		
 		lookup = new HashMap<String, Integer>(index.size());
-		translate = new HashMap<String, Translate>();
+		translate = new CoreCache<String, Translate>(cacheSize);
 		wordcount = index.size();
 		
 		for (int i = 0; i < wordcount; i++) {
@@ -218,6 +221,15 @@ public class YoudaoDict {
 		return new String[] { t.phonetic, t.translate };
 	}
 	
+	/**
+	 * 设置解释缓存的最大条目数（LRU）
+	 * @param size 最多缓存多少个单词的解释
+	 */
+	public void setCacheSize(int size) {
+		cacheSize = size;
+		if (translate != null) translate.limit(size, 0);
+	}
+	
 	/**
 	 * 词典中是否有该单词
 	 * @param word 需要查询的单词